@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import fr.pilato.demo.legacysearch.domain.Address;
+import fr.pilato.demo.legacysearch.domain.Marketing;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.PersonGenerator;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts of persons, with their address and marketing, in the MySQL database of the application,
+ * with the default settings and with the ones of the fast-ingest profile (see application-fast-ingest.yml).
+ * Every operation saves a batch of persons in one transaction, like the writers of the init do.
+ * <p>
+ * It needs the MySQL server of application.yml. The tables are created in their own database,
+ * person_benchmark, so the data of the application is left alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersonInsertBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final String URL = "jdbc:mysql://localhost:3306/person_benchmark?serverTimezone=UTC&createDatabaseIfNotExist=true";
+
+    /**
+     * False: the default profile. True: JDBC batches rewritten by the driver as multi-row inserts.
+     */
+    @Param({ "false", "true" })
+    public boolean fastIngest;
+
+    private HikariDataSource dataSource;
+    private SessionFactory sessionFactory;
+    private long index;
+
+    @Setup
+    public void setup() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(fastIngest ? URL + "&rewriteBatchedStatements=true" : URL);
+        dataSource.setUsername("root");
+        dataSource.setPassword("password");
+
+        Configuration configuration = new Configuration()
+                .addAnnotatedClass(Person.class)
+                .addAnnotatedClass(Address.class)
+                .addAnnotatedClass(Marketing.class)
+                .setProperty("hibernate.hbm2ddl.auto", "create");
+        configuration.getProperties().put("hibernate.connection.datasource", dataSource);
+        if (fastIngest) {
+            configuration.setProperty("hibernate.jdbc.batch_size", String.valueOf(BATCH_SIZE))
+                    .setProperty("hibernate.order_inserts", "true")
+                    .setProperty("hibernate.order_updates", "true");
+        }
+        sessionFactory = configuration.buildSessionFactory();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessionFactory.close();
+        dataSource.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Person> saveAll() {
+        List<Person> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(PersonGenerator.personGenerator(42, index++));
+        }
+        sessionFactory.inTransaction(session -> batch.forEach(session::persist));
+        return batch;
+    }
+}
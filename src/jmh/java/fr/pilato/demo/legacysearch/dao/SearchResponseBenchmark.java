@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.json.JsonpDeserializer;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.PersonGenerator;
+import jakarta.json.stream.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a canned search response (10 hits and the aggregations of the compute page):
+ * parsing it and writing it back as a String like {@link ElasticsearchDao#search} does,
+ * compared to copying the bytes like {@link ElasticsearchDao#rawSearch} does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchResponseBenchmark {
+
+    private JacksonJsonpMapper jsonpMapper;
+    private JsonpDeserializer<SearchResponse<Person>> deserializer;
+    private byte[] response;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        jsonpMapper = new JacksonJsonpMapper(objectMapper);
+        deserializer = SearchResponse.createSearchResponseDeserializer(JsonpDeserializer.of(Person.class));
+
+        StringBuilder json = new StringBuilder("{\"took\":3,\"timed_out\":false,")
+                .append("\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},")
+                .append("\"hits\":{\"total\":{\"value\":10000,\"relation\":\"eq\"},\"max_score\":1.0,\"hits\":[");
+        for (int i = 1; i <= 10; i++) {
+            Person person = PersonGenerator.personGenerator(42, i);
+            person.setId(i);
+            if (i > 1) {
+                json.append(',');
+            }
+            json.append("{\"_index\":\"person\",\"_id\":\"").append(i).append("\",\"_score\":1.0,\"_source\":")
+                    .append(objectMapper.writeValueAsString(person))
+                    .append('}');
+        }
+        json.append("]},\"aggregations\":");
+        try (InputStream aggregations = SearchResponseBenchmark.class.getResourceAsStream("/aggregations.json")) {
+            json.append(new String(aggregations.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        json.append('}');
+
+        response = json.toString().getBytes(StandardCharsets.UTF_8);
+        out = new ByteArrayOutputStream(response.length);
+    }
+
+    @Benchmark
+    public String typedResponse() {
+        try (JsonParser parser = jsonpMapper.jsonProvider().createParser(new ByteArrayInputStream(response))) {
+            SearchResponse<Person> searchResponse = deserializer.deserialize(parser, jsonpMapper);
+            return JsonpUtils.toJsonString(searchResponse, jsonpMapper);
+        }
+    }
+
+    @Benchmark
+    public int rawResponse() throws IOException {
+        out.reset();
+        new ByteArrayInputStream(response).transferTo(out);
+        return out.size();
+    }
+}
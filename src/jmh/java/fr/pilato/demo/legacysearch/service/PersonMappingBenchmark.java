@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.PersonGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happens to a person on the write path: the merge done by upsert and patch
+ * and the JSON serialization of the document sent in bulk requests.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersonMappingBenchmark {
+
+    private ObjectMapper objectMapper;
+    private Person person;
+    private Person target;
+    private Person update;
+
+    @Setup
+    public void setup() {
+        // Same settings as the mapper created by Spring Boot
+        objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        person = PersonGenerator.personGenerator(42, 1);
+        target = PersonGenerator.personGenerator(42, 1);
+        update = new Person();
+        update.setName("David Pilato");
+        update.setChildren(3);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return objectMapper.writeValueAsBytes(person);
+    }
+
+    @Benchmark
+    public Person replace() {
+        // Applying the same update again and again gives the same person, so we can reuse it
+        PersonMerger.replace(update, target);
+        return target;
+    }
+
+    @Benchmark
+    public Map<String, Object> merge() {
+        // Only the first call modifies the target, like a PATCH sending already known values
+        return PersonMerger.merge(update, target);
+    }
+}
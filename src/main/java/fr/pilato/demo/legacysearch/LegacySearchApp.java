@@ -20,15 +20,18 @@
 package fr.pilato.demo.legacysearch;
 
 
-import com.github.dozermapper.core.DozerBeanMapperBuilder;
-import com.github.dozermapper.core.Mapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.annotation.Bean;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableAsync
+@EnableCaching
+@EnableScheduling
 public class LegacySearchApp {
     private static final Logger logger = LoggerFactory.getLogger(LegacySearchApp.class);
 
@@ -36,10 +39,4 @@ public class LegacySearchApp {
         logger.info("Starting LegacySearch demo application");
         SpringApplication.run(LegacySearchApp.class, args);
     }
-
-    @Bean
-    public Mapper dozerBeanMapper() {
-        logger.debug("creating dozen bean mapper");
-        return DozerBeanMapperBuilder.buildDefault();
-    }
 }
@@ -0,0 +1,220 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkListener;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.client.ResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives the {@link co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester}.
+ * <ul>
+ *     <li>The number of operations per bulk request grows while elasticsearch answers fast and
+ *     is cut by half as soon as it gets slow or rejects operations (AIMD).</li>
+ *     <li>Operations rejected with a 429 are sent again, alone, with an exponential backoff.</li>
+ * </ul>
+ * The context of every operation is the number of times it has already been retried.
+ */
+class BulkController implements BulkListener<Integer> {
+    private final Logger logger = LoggerFactory.getLogger(BulkController.class);
+
+    private final BulkListener<Integer> metrics;
+    private final BiConsumer<BulkOperation, Integer> resubmit;
+    private final int minOperations;
+    private final int maxOperations;
+    private final long targetLatency;
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    private final AtomicInteger batchSize;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<Long, Long> startTimes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bulk-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Counter retries;
+    private final Counter dropped;
+
+    /**
+     * @param resubmit called to add again an operation to the ingester, with its number of retries
+     */
+    BulkController(MeterRegistry meterRegistry, BiConsumer<BulkOperation, Integer> resubmit,
+                   int minOperations, int maxOperations, Duration targetLatency,
+                   int maxRetries, Duration initialBackoff, Duration maxBackoff) {
+        this.metrics = new BulkMetricsListener<>(meterRegistry);
+        this.resubmit = resubmit;
+        this.minOperations = minOperations;
+        this.maxOperations = maxOperations;
+        this.targetLatency = targetLatency.toNanos();
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff.toMillis();
+        this.maxBackoff = maxBackoff.toMillis();
+        this.batchSize = meterRegistry.gauge("elasticsearch.bulk.batch.size", new AtomicInteger(minOperations));
+        this.retries = Counter.builder("elasticsearch.bulk.retries")
+                .description("Number of operations sent again after a rejection")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("elasticsearch.bulk.dropped")
+                .description("Number of operations given up after too many rejections")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Must be called every time an operation is added to the ingester.
+     * @return true when enough operations are waiting to send a bulk request
+     */
+    boolean added() {
+        int size = batchSize.get();
+        return pending.updateAndGet(p -> p + 1 >= size ? 0 : p + 1) == 0;
+    }
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request, List<Integer> contexts) {
+        // The ingester also flushes on its own (interval, size in bytes)
+        pending.set(0);
+        startTimes.put(executionId, System.nanoTime());
+        metrics.beforeBulk(executionId, request, contexts);
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, List<Integer> contexts, BulkResponse response) {
+        metrics.afterBulk(executionId, request, contexts, response);
+        long latency = latency(executionId);
+
+        int rejected = 0;
+        if (response.errors()) {
+            List<BulkResponseItem> items = response.items();
+            for (int i = 0; i < items.size(); i++) {
+                if (items.get(i).status() == 429) {
+                    rejected++;
+                    retry(request.operations().get(i), contexts.get(i));
+                } else if (blocked(items.get(i))) {
+                    // Sent to the previous index of the alias: the retry goes to the new one
+                    retry(request.operations().get(i), contexts.get(i));
+                }
+            }
+        }
+
+        if (rejected > 0 || latency > targetLatency) {
+            int size = batchSize.updateAndGet(s -> Math.max(minOperations, s / 2));
+            logger.debug("Bulk took {} ms with {} rejections. Reducing batch size to {}",
+                    TimeUnit.NANOSECONDS.toMillis(latency), rejected, size);
+        } else {
+            batchSize.updateAndGet(s -> Math.min(maxOperations, s + minOperations));
+        }
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, List<Integer> contexts, Throwable failure) {
+        metrics.afterBulk(executionId, request, contexts, failure);
+        latency(executionId);
+
+        if (tooManyRequests(failure)) {
+            // The whole request has been rejected
+            batchSize.updateAndGet(s -> Math.max(minOperations, s / 2));
+            for (int i = 0; i < request.operations().size(); i++) {
+                retry(request.operations().get(i), contexts.get(i));
+            }
+        }
+    }
+
+    void close() {
+        retryScheduler.shutdown();
+        try {
+            // Give a chance to the scheduled retries to be added back before the ingester is closed
+            retryScheduler.awaitTermination(maxBackoff, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long latency(long executionId) {
+        Long start = startTimes.remove(executionId);
+        return start == null ? 0 : System.nanoTime() - start;
+    }
+
+    private void retry(BulkOperation operation, Integer attempt) {
+        int attempts = attempt == null ? 0 : attempt;
+        if (attempts >= maxRetries) {
+            logger.warn("Giving up a bulk {} operation after {} retries", operation._kind(), attempts);
+            dropped.increment();
+            return;
+        }
+
+        // Exponential backoff with jitter so rejected operations don't come back all together
+        long backoff = Math.min(maxBackoff, initialBackoff << Math.min(attempts, 20));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retries.increment();
+        try {
+            retryScheduler.schedule(() -> {
+                try {
+                    resubmit.accept(operation, attempts + 1);
+                } catch (IllegalStateException e) {
+                    logger.warn("Can not retry a bulk {} operation: {}", operation._kind(), e.getMessage());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Can not retry a bulk {} operation as we are closing", operation._kind());
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return true when the operation has been rejected because its index does not accept writes anymore,
+     *         which is the case of the previous index of the alias once it has been swapped
+     */
+    static boolean blocked(BulkResponseItem item) {
+        return item.error() != null && "cluster_block_exception".equals(item.error().type());
+    }
+
+    private static boolean tooManyRequests(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof ElasticsearchException && ((ElasticsearchException) t).status() == 429) {
+                return true;
+            }
+            if (t instanceof ResponseException
+                    && ((ResponseException) t).getResponse().getStatusLine().getStatusCode() == 429) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
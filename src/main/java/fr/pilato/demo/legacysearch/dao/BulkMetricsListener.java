@@ -0,0 +1,108 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._helpers.bulk.BulkListener;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reports what the {@link co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester} does:
+ * size of the batches, requests in flight, latency of every batch and failures.
+ */
+class BulkMetricsListener<Context> implements BulkListener<Context> {
+    private final Logger logger = LoggerFactory.getLogger(BulkMetricsListener.class);
+
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary operations;
+    private final Timer success;
+    private final Timer failure;
+    private final AtomicInteger inFlight;
+    private final Map<Long, Long> startTimes = new ConcurrentHashMap<>();
+
+    BulkMetricsListener(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.operations = DistributionSummary.builder("elasticsearch.bulk.operations")
+                .description("Number of operations per bulk request")
+                .register(meterRegistry);
+        this.success = Timer.builder("elasticsearch.bulk.latency")
+                .description("Time taken by a bulk request")
+                .tag("outcome", "success")
+                .register(meterRegistry);
+        this.failure = Timer.builder("elasticsearch.bulk.latency")
+                .description("Time taken by a bulk request")
+                .tag("outcome", "failure")
+                .register(meterRegistry);
+        this.inFlight = meterRegistry.gauge("elasticsearch.bulk.inflight", new AtomicInteger());
+    }
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request, List<Context> contexts) {
+        startTimes.put(executionId, System.nanoTime());
+        inFlight.incrementAndGet();
+        operations.record(request.operations().size());
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, List<Context> contexts, BulkResponse response) {
+        stop(executionId, success);
+        if (response.errors()) {
+            for (BulkResponseItem item : response.items()) {
+                if (item.error() != null) {
+                    itemFailures(item.error().type()).increment();
+                    logger.debug("Can not {} document {}: {}", item.operationType(), item.id(), item.error().reason());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, List<Context> contexts, Throwable failure) {
+        stop(executionId, this.failure);
+        logger.warn("Bulk request of {} operations failed", request.operations().size(), failure);
+    }
+
+    private void stop(long executionId, Timer timer) {
+        inFlight.decrementAndGet();
+        Long start = startTimes.remove(executionId);
+        if (start != null) {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Counter itemFailures(String type) {
+        return Counter.builder("elasticsearch.bulk.item.failures")
+                .description("Number of operations rejected in bulk responses")
+                .tag("type", type)
+                .register(meterRegistry);
+    }
+}
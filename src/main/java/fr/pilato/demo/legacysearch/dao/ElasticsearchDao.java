@@ -19,14 +19,33 @@
 
 package fr.pilato.demo.legacysearch.dao;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester;
+import co.elastic.clients.elasticsearch._types.Conflicts;
 import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
 import co.elastic.clients.elasticsearch._types.aggregations.CalendarInterval;
 import co.elastic.clients.elasticsearch._types.aggregations.FieldDateMath;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
 import co.elastic.clients.elasticsearch.core.InfoResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.core.bulk.UpdateOperation;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.indices.GetIndexResponse;
+import co.elastic.clients.elasticsearch.indices.IndexSettings;
+import co.elastic.clients.elasticsearch.indices.IndexState;
+import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
+import co.elastic.clients.json.JsonData;
 import co.elastic.clients.json.JsonpUtils;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
@@ -34,38 +53,132 @@ import co.elastic.clients.transport.rest_client.RestClientTransport;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import fr.pilato.demo.legacysearch.domain.Person;
 import fr.pilato.demo.legacysearch.helper.SSLUtils;
+import fr.pilato.demo.legacysearch.helper.Strings;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+/**
+ * Search backend running on an elasticsearch cluster
+ */
 @Component
-public class ElasticsearchDao implements AutoCloseable {
+@ConditionalOnProperty(name = "app.search.backend", havingValue = "elasticsearch", matchIfMissing = true)
+public class ElasticsearchDao implements SearchBackend {
     private final Logger logger = LoggerFactory.getLogger(ElasticsearchDao.class);
 
+    /**
+     * Alias used to read and write persons. It points to the current person-vN index.
+     */
+    public static final String INDEX = "person";
+    private static final String VERSION_PREFIX = INDEX + "-v";
+
+    private static final String SCAN_KEEP_ALIVE = "1m";
+
+    // Set in the _meta of the mapping of the indices which route the persons by country. See person.json.
+    private static final String ROUTING_META = "routing";
+    private static final String ROUTING_FIELD = "address.country";
+
+    private final RestClient restClient;
     private final ElasticsearchClient esClient;
+    private final ElasticsearchAsyncClient esAsyncClient;
     private final JacksonJsonpMapper jacksonJsonpMapper;
 
-    private final BulkIngester<Person> bulkIngester;
+    private final BulkIngester<Integer> bulkIngester;
+    private final BulkController bulkController;
+
+    // Index being rebuilt. It receives a copy of all the writes until the alias is swapped.
+    private volatile String dualWriteIndex;
+    // Persons written while an index is being rebuilt
+    private final Set<Integer> dirtyIds = ConcurrentHashMap.newKeySet();
+    // Index behind the alias. Writes name it instead of the alias, so the routing of an operation is
+    // always the one of the index it lands in, even when the alias is swapped while it is queued.
+    private volatile String writeIndex;
+    // Whether an index routes the persons by country. Older indices route them by id.
+    private final Map<String, Boolean> routedIndices = new ConcurrentHashMap<>();
+
+    private final Timer bulkTimer;
+    private final Timer searchTimer;
+    private final Timer rawSearchTimer;
+    private final Timer aggregationsTimer;
+    private final Timer scanTimer;
+    private final Timer deleteAllTimer;
 
-    public ElasticsearchDao(ObjectMapper mapper) throws IOException {
+    public ElasticsearchDao(ObjectMapper mapper, MeterRegistry meterRegistry,
+                            @Value("${app.bulk.min-operations:100}") int bulkMinOperations,
+                            @Value("${app.bulk.max-operations:10000}") int bulkMaxOperations,
+                            @Value("${app.bulk.max-size:5MB}") DataSize bulkMaxSize,
+                            @Value("${app.bulk.max-concurrent-requests:2}") int bulkMaxConcurrentRequests,
+                            @Value("${app.bulk.flush-interval:5s}") Duration bulkFlushInterval,
+                            @Value("${app.bulk.target-latency:1s}") Duration bulkTargetLatency,
+                            @Value("${app.bulk.max-retries:5}") int bulkMaxRetries,
+                            @Value("${app.bulk.initial-backoff:100ms}") Duration bulkInitialBackoff,
+                            @Value("${app.bulk.max-backoff:10s}") Duration bulkMaxBackoff,
+                            @Value("${app.elasticsearch.max-connections:100}") int maxConnections) throws IOException {
         String clusterUrl = "https://12cf99de02c44c848ac75074be08792c.us-central1.gcp.cloud.es.io";
         final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
         credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("elastic", "Oxuw1e5gYqGl9CLFFgYr1r67"));
 
+        // Size of the bulk requests, whoever sends them
+        DistributionSummary bulkBytes = DistributionSummary.builder("elasticsearch.bulk.bytes")
+                .description("Size of the bulk requests")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
         // Create the low-level client
-        RestClient restClient = RestClient.builder(HttpHost.create(clusterUrl))
+        restClient = RestClient.builder(HttpHost.create(clusterUrl))
                 .setHttpClientConfigCallback(hcb -> hcb
                         .setDefaultCredentialsProvider(credentialsProvider)
+                        // We only talk to one cluster, so all the connections can go to the same route
+                        .setMaxConnTotal(maxConnections)
+                        .setMaxConnPerRoute(maxConnections)
                         .setSSLContext(SSLUtils.createTrustAllCertsContext())
+                        .addInterceptorLast((HttpRequestInterceptor) (request, context) -> {
+                            if (request instanceof HttpEntityEnclosingRequest
+                                    && request.getRequestLine().getUri().contains("_bulk")) {
+                                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                                long length = entity == null ? -1 : contentLength(entity);
+                                if (length >= 0) {
+                                    bulkBytes.record(length);
+                                }
+                            }
+                        })
                 )
                 .build();
 
@@ -75,107 +188,800 @@ public class ElasticsearchDao implements AutoCloseable {
 
         // And create the API client
         esClient = new ElasticsearchClient(transport);
+        esAsyncClient = new ElasticsearchAsyncClient(transport);
 
         InfoResponse info = this.esClient.info();
         logger.info("Connected to {} running version {}", clusterUrl, info.version().number());
 
-        // Create the person index
-        try {
-            esClient.indices().create(cir -> cir
-                    .index("person")
-                    .withJson(ElasticsearchDao.class.getResourceAsStream("/person.json"))
-            );
-            logger.info("New index person has been created");
-        } catch (ElasticsearchException e) {
-            if (e.status() != 400) {
-                logger.warn("can not create index and mappings", e);
-            } else {
-                logger.debug("Index person was already existing. Skipping creating it again.");
+        // Create the first person index and its alias
+        if (esClient.indices().exists(er -> er.index(INDEX)).value()) {
+            logger.debug("Index person was already existing. Skipping creating it again.");
+        } else {
+            try {
+                createIndex(VERSION_PREFIX + 1, true);
+                logger.info("New index {}1 has been created behind alias person", VERSION_PREFIX);
+            } catch (ElasticsearchException e) {
+                if (e.status() != 400) {
+                    logger.warn("can not create index and mappings", e);
+                } else {
+                    logger.debug("Index person was already existing. Skipping creating it again.");
+                }
             }
         }
+        resolveAlias();
 
-        // Use the BulkIngester helper
+        // Use the BulkIngester helper. It sends a request when we ask for it (see BulkController)
+        // or when one of the hard limits is reached.
+        bulkController = new BulkController(meterRegistry,
+                this::resubmit,
+                bulkMinOperations, bulkMaxOperations, bulkTargetLatency,
+                bulkMaxRetries, bulkInitialBackoff, bulkMaxBackoff);
         bulkIngester = BulkIngester.of(bi -> bi
                 .client(esClient)
-                .maxOperations(10000)
-                .flushInterval(5, TimeUnit.SECONDS));
+                .maxOperations(bulkMaxOperations)
+                .maxSize(bulkMaxSize.toBytes())
+                .maxConcurrentRequests(bulkMaxConcurrentRequests)
+                .flushInterval(bulkFlushInterval.toMillis(), TimeUnit.MILLISECONDS)
+                .listener(bulkController));
+
+        bulkTimer = timer(meterRegistry, "bulk");
+        searchTimer = timer(meterRegistry, "search");
+        rawSearchTimer = timer(meterRegistry, "raw_search");
+        aggregationsTimer = timer(meterRegistry, "aggregations");
+        scanTimer = timer(meterRegistry, "scan");
+        deleteAllTimer = timer(meterRegistry, "delete_all");
+    }
+
+    /**
+     * Bulk requests are sent chunked, so their length is unknown. Their body is already
+     * serialized in memory though: counting it only copies bytes, it does not serialize them again.
+     * @return the length of the body, -1 when it can only be read once
+     */
+    private static long contentLength(HttpEntity entity) throws IOException {
+        if (entity.getContentLength() >= 0 || !entity.isRepeatable()) {
+            return entity.getContentLength();
+        }
+        long[] length = new long[1];
+        entity.writeTo(new OutputStream() {
+            @Override
+            public void write(int b) {
+                length[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                length[0] += len;
+            }
+        });
+        return length[0];
+    }
+
+    private void resubmit(BulkOperation operation, Integer retries) {
+        bulkIngester.add(retarget(operation), retries);
+    }
+
+    /**
+     * An operation rejected by a previous index of the alias (see {@link #swapAlias(String)}) is
+     * sent again to the current one, with the routing of the current one.
+     */
+    private BulkOperation retarget(BulkOperation operation) {
+        String target = writeIndex;
+        if (operation.isIndex() && routedIndices.containsKey(operation.index().index())
+                && !operation.index().index().equals(target)) {
+            return indexOperation(target, (Person) operation.index().document());
+        }
+        if (operation.isDelete() && routedIndices.containsKey(operation.delete().index())
+                && !operation.delete().index().equals(target)) {
+            String id = operation.delete().id();
+            String routing = operation.delete().routing();
+            return BulkOperation.of(o -> o.delete(dr -> dr
+                    .index(target)
+                    .id(id)
+                    .routing(routing(target, routing))));
+        }
+        return operation;
+    }
+
+    private static Timer timer(MeterRegistry meterRegistry, String operation) {
+        return Timer.builder("elasticsearch.dao")
+                .description("Time taken by the calls to elasticsearch")
+                .tag("operation", operation)
+                .register(meterRegistry);
     }
 
+    /**
+     * A call to elasticsearch
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private static <T> T timed(Timer timer, Call<T> call) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static <T> CompletableFuture<T> timedAsync(Timer timer, Supplier<CompletableFuture<T>> call) {
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, e) -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Index documents in the background. They are sent when the current batch is full
+     * or after the flush interval.
+     */
+    @Override
     public void saveAll(Iterable<Person> persons) {
-        persons.forEach(person -> bulkIngester.add(o -> o.index(i -> i
-                .index("person")
+        persons.forEach(person -> {
+            add(indexOperation(writeIndex, person));
+            String target = dualWriteIndex(person.getId());
+            if (target != null) {
+                add(indexOperation(target, person));
+            }
+        });
+    }
+
+    private BulkOperation indexOperation(String index, Person person) {
+        return BulkOperation.of(o -> o.index(i -> i
+                .index(index)
                 .id(person.idAsString())
+                .routing(routing(index, SearchBackend.routing(person)))
                 .document(person)
-        )));
-        
-        bulkIngester.flush(); // TODO: Avaliar se é necessario
+        ));
     }
 
-    public void delete(Integer id) {
-        bulkIngester.add(o -> o.delete(dr -> dr
-                .index("person")
+    private BulkOperation deleteOperation(String index, Integer id, String routing) {
+        return BulkOperation.of(o -> o.delete(dr -> dr
+                .index(index)
                 .id(String.valueOf(id))
+                .routing(routing(index, routing))
         ));
     }
 
-    public String search(Query query, Integer from, Integer size) throws IOException {
-        SearchResponse<Person> response = esClient.search(sr -> sr
-                        .index("person")
-                        .query(query)
-                        .from(from)
-                        .size(size)
-                        .trackTotalHits(tth -> tth.enabled(true))
-                        .aggregations("by_country", ab -> ab.terms(tb -> tb.field("address.country.keyword"))
-                          .aggregations("by_year", sab -> sab.dateHistogram(dhb -> dhb
-                            .field("dateOfBirth")
-                            .fixedInterval(d -> d.time("3653d"))
-                            .extendedBounds(b -> b
-                              .min(FieldDateMath.of(fdm -> fdm.expr("1940")))
-                              .max(FieldDateMath.of(fdm -> fdm.expr("2009"))))
-                              .format("8yyyy"))
-                                .aggregations("avg_children", ssab -> ssab.avg(avg -> avg.field("children"))))
-                        )
-                        .aggregations("by_year", sab -> sab.dateHistogram(dhb -> dhb
-                        .field("dateOfBirth")
-                        .calendarInterval(CalendarInterval.Year)
-                        .extendedBounds(b -> b
-                          .min(FieldDateMath.of(fdm -> fdm.expr("1940")))
-                          .max(FieldDateMath.of(fdm -> fdm.expr("2009"))))
-                          .format("8yyyy")))
-                , Person.class);
-
-        return JsonpUtils.toJsonString(response, jacksonJsonpMapper);
+    /**
+     * @param index the alias or an index
+     * @return the routing to use in this index. Only the index behind the alias may be routed by id:
+     *         the indices built by a reindex are all routed by country.
+     */
+    private String routing(String index, String routing) {
+        String concrete = INDEX.equals(index) ? writeIndex : index;
+        return Boolean.FALSE.equals(routedIndices.get(concrete)) ? null : routing;
+    }
+
+    /**
+     * Find the index behind the alias. Called at startup, after a swap and periodically, so an instance
+     * follows the swaps done by other instances.
+     */
+    @Scheduled(fixedDelayString = "${app.elasticsearch.alias-check-interval:1000}")
+    public void checkAlias() {
+        try {
+            resolveAlias();
+        } catch (Exception e) {
+            logger.warn("Can not find the index behind alias {}: {}", INDEX, e.getMessage());
+        }
+    }
+
+    private void resolveAlias() throws IOException {
+        String index = INDEX;
+        try {
+            index = esClient.indices().getAlias(ga -> ga.name(INDEX)).result().keySet().iterator().next();
+        } catch (ElasticsearchException e) {
+            // Not an alias yet: the first versions of the application created a plain index
+            if (e.status() != 404) {
+                throw e;
+            }
+        }
+        if (!routedIndices.containsKey(index)) {
+            routedIndices.put(index, isRouted(index));
+        }
+        if (!index.equals(writeIndex)) {
+            writeIndex = index;
+            logger.info("Persons are written to {}, routed by {}", index, routedIndices.get(index) ? "country" : "id");
+        }
+    }
+
+    private boolean isRouted(String index) throws IOException {
+        for (IndexMappingRecord mapping : esClient.indices().getMapping(gm -> gm.index(index)).result().values()) {
+            JsonData routing = mapping.mappings().meta().get(ROUTING_META);
+            if (routing == null) {
+                continue;
+            }
+            if (ROUTING_FIELD.equals(routing.to(String.class))) {
+                return true;
+            }
+            // The first routed indices used the country code, which searches can not always tell
+            logger.warn("Index {} routes the persons by {}: it is used like an index routed by id, reindex it to route them by {}",
+                    index, routing.to(String.class), ROUTING_FIELD);
+        }
+        return false;
+    }
+
+    /**
+     * @return the index being rebuilt, if any, after remembering that this person changed
+     */
+    private String dualWriteIndex(Integer id) {
+        String target = dualWriteIndex;
+        if (target != null) {
+            dirtyIds.add(id);
+        }
+        return target;
+    }
+
+    private void add(BulkOperation operation) {
+        bulkIngester.add(operation, 0);
+        if (bulkController.added()) {
+            bulkIngester.flush();
+        }
+    }
+
+    /**
+     * @param routing the routing the person was indexed with. See {@link SearchBackend#routing(Person)}.
+     */
+    public void delete(Integer id, String routing) {
+        add(deleteOperation(writeIndex, id, routing));
+        String target = dualWriteIndex(id);
+        if (target != null) {
+            add(deleteOperation(target, id, routing));
+        }
+    }
+
+    /**
+     * Synchronously delete, index and partially update documents in a single bulk request.
+     * Deletions are sent first, so a person which moved to another country can be deleted
+     * with its previous routing and indexed again with the new one.
+     * @param updates partial documents to apply, by person as it is now in the database
+     * @param deletes routings the documents to delete were indexed with, by person id. A null routing
+     *                deletes the document routed by id.
+     * @return the ids of the documents which could not be indexed, updated or deleted
+     */
+    @Override
+    public Set<String> bulk(Iterable<Person> persons, Map<Person, Map<String, Object>> updates,
+                            Map<Integer, Set<String>> deletes, Refresh refresh) throws IOException {
+        BulkRequest.Builder request = new BulkRequest.Builder().refresh(refresh);
+        String index = writeIndex;
+        int operations = 0;
+        for (Map.Entry<Integer, Set<String>> delete : deletes.entrySet()) {
+            String target = dualWriteIndex(delete.getKey());
+            for (String routing : delete.getValue()) {
+                request.operations(deleteOperation(index, delete.getKey(), routing));
+                operations++;
+                if (target != null) {
+                    request.operations(deleteOperation(target, delete.getKey(), routing));
+                }
+            }
+        }
+        for (Person person : persons) {
+            request.operations(indexOperation(index, person));
+            operations++;
+            String target = dualWriteIndex(person.getId());
+            if (target != null) {
+                request.operations(indexOperation(target, person));
+            }
+        }
+        for (Map.Entry<Person, Map<String, Object>> update : updates.entrySet()) {
+            Person person = update.getKey();
+            request.operations(updateOperation(index, person, update.getValue()));
+            operations++;
+            String target = dualWriteIndex(person.getId());
+            if (target != null) {
+                // Fails if the person has not been copied yet. The reindex will copy it again anyway.
+                request.operations(updateOperation(target, person, update.getValue()));
+            }
+        }
+
+        Set<String> failures = new HashSet<>();
+        if (operations == 0) {
+            return failures;
+        }
+
+        BulkResponse response = timed(bulkTimer, () -> esClient.bulk(request.build()));
+        if (response.errors()) {
+            String target = dualWriteIndex;
+            boolean moved = false;
+            for (BulkResponseItem item : response.items()) {
+                if (item.error() != null && !item.index().equals(target)) {
+                    logger.warn("Can not {} document {}: {}", item.operationType(), item.id(), item.error().reason());
+                    failures.add(item.id());
+                    moved |= BulkController.blocked(item);
+                }
+            }
+            if (moved) {
+                // Another instance swapped the alias: the failed documents will be sent again to the new index
+                checkAlias();
+            }
+        }
+        return failures;
+    }
+
+    private BulkOperation updateOperation(String index, Person person, Map<String, Object> document) {
+        UpdateOperation<Person, Map<String, Object>> operation = new UpdateOperation.Builder<Person, Map<String, Object>>()
+                .index(index)
+                .id(person.idAsString())
+                .routing(routing(index, SearchBackend.routing(person)))
+                .action(a -> a.doc(document))
+                .build();
+        return BulkOperation.of(o -> o.update(operation));
+    }
+
+    private void createIndex(String name, boolean withAlias) throws IOException {
+        esClient.indices().create(cir -> {
+            cir.withJson(ElasticsearchDao.class.getResourceAsStream("/person.json")).index(name);
+            if (withAlias) {
+                cir.aliases(INDEX, a -> a);
+            }
+            return cir;
+        });
+    }
+
+    /**
+     * Create the next person-vN index, ready for a bulk load: no replica and no refresh.
+     * @return the name of the new index
+     */
+    public String createNextIndex() throws IOException {
+        int version = 0;
+        GetIndexResponse indices = esClient.indices().get(gi -> gi
+                .index(VERSION_PREFIX + "*")
+                .allowNoIndices(true));
+        for (String name : indices.result().keySet()) {
+            try {
+                version = Math.max(version, Integer.parseInt(name.substring(VERSION_PREFIX.length())));
+            } catch (NumberFormatException ignored) { }
+        }
+
+        String name = VERSION_PREFIX + (version + 1);
+        createIndex(name, false);
+        esClient.indices().putSettings(ps -> ps
+                .index(name)
+                .settings(is -> is
+                        .numberOfReplicas("0")
+                        .refreshInterval(t -> t.time("-1"))));
+        logger.info("Index {} has been created", name);
+        return name;
+    }
+
+    /**
+     * From now on, all the writes are also sent to this index until {@link #stopDualWrites()} is called.
+     */
+    public void startDualWrites(String index) {
+        dirtyIds.clear();
+        dualWriteIndex = index;
+    }
+
+    public void stopDualWrites() {
+        dualWriteIndex = null;
+        dirtyIds.clear();
+    }
+
+    /**
+     * @return the ids of the persons written since the last call, while dual writes are enabled
+     */
+    public Set<Integer> takeDirtyIds() {
+        Set<Integer> ids = new HashSet<>();
+        for (Iterator<Integer> iterator = dirtyIds.iterator(); iterator.hasNext(); ) {
+            ids.add(iterator.next());
+            iterator.remove();
+        }
+        return ids;
+    }
+
+    /**
+     * Synchronously index documents in the given index.
+     * @throws IOException if one of the operations failed
+     */
+    public void load(String index, Iterable<Person> persons) throws IOException {
+        BulkRequest.Builder request = new BulkRequest.Builder();
+        int operations = 0;
+        for (Person person : persons) {
+            request.operations(indexOperation(index, person));
+            operations++;
+        }
+        if (operations == 0) {
+            return;
+        }
+
+        BulkResponse response = timed(bulkTimer, () -> esClient.bulk(request.build()));
+        if (response.errors()) {
+            for (BulkResponseItem item : response.items()) {
+                if (item.error() != null) {
+                    throw new IOException("Can not " + item.operationType() + " document " + item.id()
+                            + " in " + index + ": " + item.error().reason());
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete documents from the given index whatever their routing. The persons may have changed
+     * country since they were loaded, so we can not tell which shard holds them.
+     */
+    public void remove(String index, Collection<Integer> ids) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<String> values = new ArrayList<>(ids.size());
+        ids.forEach(id -> values.add(String.valueOf(id)));
+        // The index being loaded is not refreshed automatically: make the documents visible to the delete
+        esClient.indices().refresh(rr -> rr.index(index));
+        timed(bulkTimer, () -> esClient.deleteByQuery(dq -> dq
+                .index(index)
+                .query(q -> q.ids(iq -> iq.values(values)))
+                .conflicts(Conflicts.Proceed)
+                .refresh(true)));
+    }
+
+    /**
+     * Delete an index which never made it behind the alias, like the one of a failed reindex.
+     * Call {@link #stopDualWrites()} first.
+     * @throws IllegalArgumentException if the alias points to the index
+     */
+    public void deleteIndex(String index) throws IOException {
+        if (index.equals(writeIndex) || esClient.indices().existsAlias(ea -> ea.name(INDEX).index(index)).value()) {
+            throw new IllegalArgumentException("Index " + index + " is behind alias " + INDEX + ": it can not be deleted");
+        }
+        // Send the copies of the writes still waiting for it: once it is deleted, they would create it again
+        bulkIngester.flush();
+        esClient.indices().delete(d -> d.index(index).ignoreUnavailable(true));
+        logger.info("Index {} has been deleted", index);
+    }
+
+    /**
+     * Give back to a loaded index the replicas and refresh interval of the current index, and refresh it.
+     */
+    public void restoreSettings(String index) throws IOException {
+        String replicas = "1";
+        Time refreshInterval = Time.of(t -> t.time("1s"));
+        for (IndexState state : esClient.indices().getSettings(gs -> gs.index(INDEX)).result().values()) {
+            IndexSettings settings = state.settings();
+            if (settings != null && settings.index() != null) {
+                settings = settings.index();
+            }
+            if (settings != null && settings.numberOfReplicas() != null) {
+                replicas = settings.numberOfReplicas();
+            }
+            if (settings != null && settings.refreshInterval() != null) {
+                refreshInterval = settings.refreshInterval();
+            }
+        }
+
+        String numberOfReplicas = replicas;
+        Time interval = refreshInterval;
+        esClient.indices().putSettings(ps -> ps
+                .index(index)
+                .settings(is -> is
+                        .numberOfReplicas(numberOfReplicas)
+                        .refreshInterval(interval)));
+        esClient.indices().refresh(rr -> rr.index(index));
+    }
+
+    /**
+     * Atomically move the alias to the given index. When person is still a plain index
+     * (created before the alias existed), it is removed in the same operation.
+     * @return the indices the alias was pointing to
+     */
+    public List<String> swapAlias(String index) throws IOException {
+        List<String> previous = new ArrayList<>();
+        try {
+            previous.addAll(esClient.indices().getAlias(ga -> ga.name(INDEX)).result().keySet());
+        } catch (ElasticsearchException e) {
+            if (e.status() != 404) {
+                throw e;
+            }
+        }
+        boolean plainIndex = previous.isEmpty() && esClient.indices().exists(er -> er.index(INDEX)).value();
+
+        esClient.indices().updateAliases(ua -> {
+            for (String old : previous) {
+                ua.actions(a -> a.remove(r -> r.index(old).alias(INDEX)));
+            }
+            if (plainIndex) {
+                ua.actions(a -> a.removeIndex(r -> r.index(INDEX)));
+            }
+            return ua.actions(a -> a.add(aa -> aa.index(index).alias(INDEX)));
+        });
+        routedIndices.put(index, isRouted(index));
+        writeIndex = index;
+        logger.info("Alias {} now points to {} instead of {}", INDEX, index, plainIndex ? INDEX : previous);
+
+        // Other instances may still write to the previous index until they see the swap: make them fail,
+        // so they retry on the new index instead of writing where nobody reads anymore.
+        if (!previous.isEmpty()) {
+            esClient.indices().putSettings(ps -> ps
+                    .index(previous)
+                    .settings(is -> is.blocks(b -> b.write(true))));
+        }
+        return previous;
+    }
+
+    /**
+     * Search for persons. Only the hits are computed by elasticsearch: the aggregations
+     * are given by the caller as they do not depend on the page. See {@link #aggregations(Query, String)}.
+     * @param routing   routing of the country when the query only matches persons of this country, so elasticsearch
+     *                  only asks the shard holding them. Null to ask all the shards.
+     * @param cursor    null or empty to read the page starting at from. Otherwise, from is ignored: the hits are
+     *                  sorted by score and id and the page starts after the cursor. {@link #FIRST_PAGE} reads the
+     *                  first page. The response then holds a next_cursor field, absent after the last page.
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    @Override
+    public String search(Query query, String routing, Integer from, Integer size, String cursor,
+                         Map<String, Aggregate> aggregations) throws IOException {
+        SearchRequest request = hitsRequest(query, routing, from, size, cursor);
+        SearchResponse<Person> response = timed(searchTimer, () -> esClient.search(request, Person.class));
+        return toJson(response, aggregations, cursor, size);
+    }
+
+    /**
+     * Same as {@link #search(Query, String, Integer, Integer, String, Map)} without blocking the calling thread.
+     * The hits are fetched while the aggregations are being computed.
+     */
+    @Override
+    public CompletableFuture<String> searchAsync(Query query, String routing, Integer from, Integer size, String cursor,
+                                                 CompletableFuture<Map<String, Aggregate>> aggregations) {
+        SearchRequest request = hitsRequest(query, routing, from, size, cursor);
+        return timedAsync(searchTimer, () -> esAsyncClient.search(request, Person.class))
+                .thenCombine(aggregations, (response, aggs) -> toJson(response, aggs, cursor, size));
+    }
+
+    private SearchRequest hitsRequest(Query query, String routing, Integer from, Integer size, String cursor) {
+        return SearchRequest.of(sr -> {
+            sr.index(INDEX)
+                    .routing(routing(INDEX, routing))
+                    .query(query)
+                    .size(size);
+            if (Strings.isEmpty(cursor)) {
+                return sr.from(from).trackTotalHits(tth -> tth.enabled(true));
+            }
+            // Same cost whatever the page: elasticsearch only keeps the hits after the cursor.
+            // The id makes the order stable between hits having the same score.
+            sr.sort(so -> so.score(sc -> sc.order(SortOrder.Desc)))
+                    .sort(so -> so.field(f -> f.field("id").order(SortOrder.Asc)));
+            if (FIRST_PAGE.equals(cursor)) {
+                // Only the first page tells how many persons match
+                return sr.trackTotalHits(tth -> tth.enabled(true));
+            }
+            return sr.searchAfter(SearchCursor.decode(cursor)).trackTotalHits(tth -> tth.enabled(false));
+        });
+    }
+
+    private String toJson(SearchResponse<Person> response, Map<String, Aggregate> aggregations, String cursor, Integer size) {
+        String json = toJson(response, aggregations);
+        List<Hit<Person>> hits = response.hits().hits();
+        if (Strings.isEmpty(cursor) || hits.size() < size || hits.isEmpty()) {
+            return json;
+        }
+        // The response is a JSON object: we add the next cursor as its first field
+        String nextCursor = SearchCursor.encode(hits.get(hits.size() - 1).sort());
+        return "{\"next_cursor\":\"" + nextCursor + "\"," + json.substring(1);
+    }
+
+    private String toJson(SearchResponse<Person> response, Map<String, Aggregate> aggregations) {
+        SearchResponse<Person> merged = new SearchResponse.Builder<Person>()
+                .took(response.took())
+                .timedOut(response.timedOut())
+                .shards(response.shards())
+                .hits(response.hits())
+                .aggregations(aggregations)
+                .build();
+
+        return JsonpUtils.toJsonString(merged, jacksonJsonpMapper);
+    }
+
+    /**
+     * Search for persons with the aggregations and copy the elasticsearch response as is
+     * to the output stream while it is received. This skips the deserialization of the response
+     * in {@link SearchResponse} and its serialization back as a String, and the response is
+     * never held in memory as a whole.
+     */
+    @Override
+    public void rawSearch(Query query, String routing, Integer from, Integer size, OutputStream out) throws IOException {
+        SearchRequest searchRequest = withAggregations(new SearchRequest.Builder()
+                .query(query)
+                .from(from)
+                .size(size)
+                .trackTotalHits(tth -> tth.enabled(true)))
+                .build();
+
+        // typed_keys is what the API client uses, so the JSON matches the one of search()
+        Request request = new Request("POST", "/person/_search");
+        request.addParameter("typed_keys", "true");
+        String shardRouting = routing(INDEX, routing);
+        if (shardRouting != null) {
+            request.addParameter("routing", shardRouting);
+        }
+        request.setJsonEntity(JsonpUtils.toJsonString(searchRequest, jacksonJsonpMapper));
+
+        timed(rawSearchTimer, () -> StreamingResponseConsumer.copy(consumer -> {
+            request.setOptions(request.getOptions().toBuilder().setHttpAsyncResponseConsumerFactory(consumer));
+            return restClient.performRequestAsync(request, consumer);
+        }, out));
+    }
+
+    /**
+     * Compute the aggregations of a query without fetching any hit.
+     * @param routing see {@link #search(Query, String, Integer, Integer, String, Map)}
+     */
+    @Override
+    public Map<String, Aggregate> aggregations(Query query, String routing) throws IOException {
+        SearchResponse<Person> response = timed(aggregationsTimer, () -> esClient.search(aggregationsRequest(query, routing), Person.class));
+        return response.aggregations();
+    }
+
+    /**
+     * Same as {@link #aggregations(Query, String)} without blocking the calling thread.
+     */
+    @Override
+    public CompletableFuture<Map<String, Aggregate>> aggregationsAsync(Query query, String routing) {
+        return timedAsync(aggregationsTimer, () -> esAsyncClient.search(aggregationsRequest(query, routing), Person.class))
+                .thenApply(SearchResponse::aggregations);
+    }
+
+    private SearchRequest aggregationsRequest(Query query, String routing) {
+        return withAggregations(new SearchRequest.Builder()
+                .index(INDEX)
+                .routing(routing(INDEX, routing))
+                .query(query)
+                .size(0)
+                .trackTotalHits(tth -> tth.enabled(false)))
+                .build();
+    }
+
+    private static SearchRequest.Builder withAggregations(SearchRequest.Builder sr) {
+        return sr
+                .aggregations("by_country", ab -> ab.terms(tb -> tb.field("address.country.keyword"))
+                  .aggregations("by_year", sab -> sab.dateHistogram(dhb -> dhb
+                    .field("dateOfBirth")
+                    .fixedInterval(d -> d.time("3653d"))
+                    .extendedBounds(b -> b
+                      .min(FieldDateMath.of(fdm -> fdm.expr("1940")))
+                      .max(FieldDateMath.of(fdm -> fdm.expr("2009"))))
+                      .format("8yyyy"))
+                        .aggregations("avg_children", ssab -> ssab.avg(avg -> avg.field("children"))))
+                )
+                .aggregations("by_year", sab -> sab.dateHistogram(dhb -> dhb
+                .field("dateOfBirth")
+                .calendarInterval(CalendarInterval.Year)
+                .extendedBounds(b -> b
+                  .min(FieldDateMath.of(fdm -> fdm.expr("1940")))
+                  .max(FieldDateMath.of(fdm -> fdm.expr("2009"))))
+                  .format("8yyyy")));
     }
 
     @Override
     public void close() {
+        bulkController.close();
         bulkIngester.close();
     }
 
+    @Override
     public void deleteAll() throws IOException {
         logger.warn("Apagando todos os documentos do índice 'person'...");
 
         // 1️⃣ Envia um request para deletar todos os documentos do índice "person"
-        esClient.deleteByQuery(dq -> dq
-            .index("person")
+        // and of the index being rebuilt, which would bring them back when the alias is swapped
+        List<String> indices = new ArrayList<>(List.of(INDEX));
+        String target = dualWriteIndex;
+        if (target != null) {
+            indices.add(target);
+        }
+        timed(deleteAllTimer, () -> esClient.deleteByQuery(dq -> dq
+            .index(indices)
             .query(q -> q.matchAll(mq -> mq))
-        );
+        ));
 
         logger.info("Todos os documentos do índice 'person' foram removidos.");
     }
     
-    public String searchAll() throws IOException {
-        logger.info("Buscando todos os documentos no Elasticsearch...");
+    /**
+     * Read all the persons of the index, page by page, using a point in time and search_after.
+     * Memory usage only depends on the page size, whatever the size of the index.
+     * @param pageSize  number of persons fetched per request
+     * @param slices    number of slices read in parallel, at most one per shard. When more than 1,
+     *                  the consumer is called from several threads and must be thread safe.
+     * @param consumer  called for every person
+     * @return the number of persons read
+     */
+    @Override
+    public long scan(int pageSize, int slices, Consumer<Person> consumer) throws IOException {
+        // More slices than shards only adds threads reading the same shards
+        int parallel = slices > 1 ? Math.min(slices, shards()) : 1;
+        return timed(scanTimer, () -> doScan(pageSize, parallel, consumer));
+    }
+
+    private int shards() throws IOException {
+        int shards = 0;
+        for (IndexState state : esClient.indices().getSettings(gs -> gs.index(INDEX)).result().values()) {
+            IndexSettings settings = state.settings();
+            if (settings != null && settings.index() != null) {
+                settings = settings.index();
+            }
+            if (settings != null && settings.numberOfShards() != null) {
+                shards += Integer.parseInt(settings.numberOfShards());
+            }
+        }
+        return Math.max(shards, 1);
+    }
 
-        SearchResponse<Person> response = esClient.search(sr -> sr
-                        .index("person")
-                        .query(q -> q.matchAll(mq -> mq))
-                        .size(10_000),  // Ajuste esse valor se houver mais registros
-                Person.class);
+    private long doScan(int pageSize, int slices, Consumer<Person> consumer) throws IOException {
+        String pitId = esClient.openPointInTime(pit -> pit
+                .index(INDEX)
+                .keepAlive(ka -> ka.time(SCAN_KEEP_ALIVE))
+        ).id();
+        logger.debug("Scanning index person with {} slices", slices);
 
-        logger.info("Busca no Elasticsearch concluída. Registros encontrados: {}", response.hits().hits().size());
+        try {
+            if (slices <= 1) {
+                return scanSlice(pitId, null, 1, pageSize, consumer);
+            }
 
-        return JsonpUtils.toJsonString(response, jacksonJsonpMapper);
+            ExecutorService executor = Executors.newFixedThreadPool(slices);
+            try {
+                List<Future<Long>> futures = new ArrayList<>(slices);
+                for (int i = 0; i < slices; i++) {
+                    int slice = i;
+                    futures.add(executor.submit(() -> scanSlice(pitId, slice, slices, pageSize, consumer)));
+                }
+                long total = 0;
+                for (Future<Long> future : futures) {
+                    total += future.get();
+                }
+                return total;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Scan has been interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Scan failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            esClient.closePointInTime(cpit -> cpit.id(pitId));
+        }
+    }
+
+    private long scanSlice(String pitId, Integer slice, int slices, int pageSize, Consumer<Person> consumer) throws IOException {
+        long count = 0;
+        String currentPitId = pitId;
+        List<FieldValue> searchAfter = null;
+
+        while (true) {
+            String pit = currentPitId;
+            List<FieldValue> after = searchAfter;
+            SearchResponse<Person> response = esClient.search(sr -> {
+                sr.pit(p -> p.id(pit).keepAlive(ka -> ka.time(SCAN_KEEP_ALIVE)))
+                        .size(pageSize)
+                        .sort(so -> so.field(f -> f.field("_shard_doc")))
+                        .trackTotalHits(tth -> tth.enabled(false));
+                if (slice != null) {
+                    sr.slice(sl -> sl.id(String.valueOf(slice)).max(slices));
+                }
+                if (after != null) {
+                    sr.searchAfter(after);
+                }
+                return sr;
+            }, Person.class);
+
+            List<Hit<Person>> hits = response.hits().hits();
+            for (Hit<Person> hit : hits) {
+                consumer.accept(hit.source());
+                count++;
+            }
+            if (hits.size() < pageSize) {
+                return count;
+            }
+
+            searchAfter = hits.get(hits.size() - 1).sort();
+            if (response.pitId() != null) {
+                currentPitId = response.pitId();
+            }
+        }
     }
 
 }
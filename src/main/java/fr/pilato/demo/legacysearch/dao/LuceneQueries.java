@@ -0,0 +1,285 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.MultiMatchQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.RangeQuery;
+import co.elastic.clients.json.JsonData;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.SimpleJsonpMapper;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenizer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Analyzers of person.json and translation of the elasticsearch queries built by the
+ * service into Lucene queries. Only the queries the service builds are supported.
+ */
+final class LuceneQueries {
+
+    static final String ID = "_id";
+    static final String SOURCE = "_source";
+    static final String DATE_OF_BIRTH = "dateOfBirth";
+
+    private static final String NGRAM_SUFFIX = ".ngram";
+
+    /**
+     * The ngram analyzer of person.json: edge ngrams from 1 to 10 letters or digits, lowercased
+     */
+    static final Analyzer NGRAM = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer tokenizer = new EdgeNGramTokenizer(1, 10) {
+                @Override
+                protected boolean isTokenChar(int chr) {
+                    return Character.isLetterOrDigit(chr);
+                }
+            };
+            return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+        }
+    };
+
+    // The standard analyzer of elasticsearch does not remove any stop word
+    private static final Analyzer STANDARD = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+    private static final Analyzer SIMPLE = new SimpleAnalyzer();
+
+    // Reads the bounds of the range queries, which may have been built from plain Java values
+    private static final JsonpMapper JSONP_MAPPER = new SimpleJsonpMapper();
+
+    /**
+     * Analyzer used to index the text fields. The .ngram sub fields use {@link #NGRAM}, the others the standard one.
+     */
+    static final Analyzer INDEX_ANALYZER = new PerFieldAnalyzerWrapper(STANDARD, Map.of(
+            "name" + NGRAM_SUFFIX, NGRAM,
+            "gender" + NGRAM_SUFFIX, NGRAM,
+            "address.city" + NGRAM_SUFFIX, NGRAM,
+            "address.country" + NGRAM_SUFFIX, NGRAM));
+
+    private LuceneQueries() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the query is not supported
+     */
+    static org.apache.lucene.search.Query toLucene(Query query) {
+        switch (query._kind()) {
+            case MatchAll:
+                return new MatchAllDocsQuery();
+            case Match:
+                return match(query.match().field(), text(query.match().query()),
+                        query.match().fuzziness(), query.match().boost());
+            case MultiMatch:
+                return multiMatch(query.multiMatch());
+            case Bool:
+                return bool(query.bool());
+            case Term:
+                return boost(new TermQuery(new Term(query.term().field(), text(query.term().value()))), query.term().boost());
+            case Range:
+                return range(query.range());
+            case Ids:
+                List<BytesRef> ids = new ArrayList<>();
+                query.ids().values().forEach(id -> ids.add(new BytesRef(id)));
+                return new TermInSetQuery(ID, ids);
+            default:
+                throw new IllegalArgumentException("Query " + query._kind() + " is not supported by the lucene backend");
+        }
+    }
+
+    private static org.apache.lucene.search.Query multiMatch(MultiMatchQuery multiMatch) {
+        List<org.apache.lucene.search.Query> disjuncts = new ArrayList<>();
+        for (String field : multiMatch.fields()) {
+            // name^3 means a boost of 3 on name
+            int caret = field.indexOf('^');
+            Float boost = caret < 0 ? null : Float.parseFloat(field.substring(caret + 1));
+            String name = caret < 0 ? field : field.substring(0, caret);
+            disjuncts.add(match(name, multiMatch.query(), multiMatch.fuzziness(), boost));
+        }
+        // best_fields: the score of the best field, plus the others times the tie breaker
+        float tieBreaker = multiMatch.tieBreaker() == null ? 0 : multiMatch.tieBreaker().floatValue();
+        return boost(new DisjunctionMaxQuery(disjuncts, tieBreaker), multiMatch.boost());
+    }
+
+    /**
+     * Like a match query: any of the terms of the analyzed text
+     */
+    private static org.apache.lucene.search.Query match(String field, String text, String fuzziness, Float boost) {
+        List<String> terms = analyze(searchAnalyzer(field), field, text);
+        if (terms.isEmpty()) {
+            return new MatchNoDocsQuery();
+        }
+        if (terms.size() == 1) {
+            return boost(fuzzy(field, terms.get(0), fuzziness), boost);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (String term : terms) {
+            builder.add(fuzzy(field, term, fuzziness), BooleanClause.Occur.SHOULD);
+        }
+        return boost(builder.build(), boost);
+    }
+
+    private static org.apache.lucene.search.Query fuzzy(String field, String term, String fuzziness) {
+        int edits = edits(term, fuzziness);
+        if (edits == 0) {
+            return new TermQuery(new Term(field, term));
+        }
+        // Same defaults as elasticsearch: no prefix, 50 expansions, transpositions
+        return new FuzzyQuery(new Term(field, term), edits, 0, 50, true);
+    }
+
+    /**
+     * @return the number of edits allowed by the fuzziness. AUTO allows 1 edit from 3 characters and 2 from 6.
+     */
+    static int edits(String term, String fuzziness) {
+        if (fuzziness == null) {
+            return 0;
+        }
+        if (fuzziness.equalsIgnoreCase("auto")) {
+            int length = term.codePointCount(0, term.length());
+            return length <= 2 ? 0 : length <= 5 ? 1 : 2;
+        }
+        try {
+            return Math.min(Math.max(Integer.parseInt(fuzziness), 0), 2);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Fuzziness " + fuzziness + " is not supported by the lucene backend");
+        }
+    }
+
+    private static org.apache.lucene.search.Query bool(BoolQuery bool) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        bool.must().forEach(q -> builder.add(toLucene(q), BooleanClause.Occur.MUST));
+        bool.should().forEach(q -> builder.add(toLucene(q), BooleanClause.Occur.SHOULD));
+        bool.filter().forEach(q -> builder.add(toLucene(q), BooleanClause.Occur.FILTER));
+        bool.mustNot().forEach(q -> builder.add(toLucene(q), BooleanClause.Occur.MUST_NOT));
+        if (bool.must().isEmpty() && bool.should().isEmpty() && bool.filter().isEmpty()) {
+            // Like elasticsearch, only excluding documents matches all the others
+            builder.add(new MatchAllDocsQuery(), BooleanClause.Occur.FILTER);
+        }
+        return boost(builder.build(), bool.boost());
+    }
+
+    private static org.apache.lucene.search.Query range(RangeQuery range) {
+        boolean date = DATE_OF_BIRTH.equals(range.field());
+        long lower = Long.MIN_VALUE;
+        long upper = Long.MAX_VALUE;
+        if (range.gte() != null || range.from() != null) {
+            lower = bound(range.gte() != null ? text(range.gte()) : range.from(), date, false);
+        }
+        if (range.gt() != null) {
+            lower = bound(text(range.gt()), date, true) + 1;
+        }
+        if (range.lte() != null || range.to() != null) {
+            upper = bound(range.lte() != null ? text(range.lte()) : range.to(), date, true);
+        }
+        if (range.lt() != null) {
+            upper = bound(text(range.lt()), date, false) - 1;
+        }
+        return boost(LongPoint.newRangeQuery(range.field(), lower, upper), range.boost());
+    }
+
+    /**
+     * @param roundUp like elasticsearch, gt and lte on 1970 mean after the end of 1970. gte and lt mean its start.
+     * @return the bound as a number, in milliseconds since the epoch for dates
+     */
+    private static long bound(String value, boolean date, boolean roundUp) {
+        if (!date) {
+            return Long.parseLong(value);
+        }
+        // Formats of dateOfBirth in person.json: yyyy-MM-dd||yyyy
+        LocalDate start;
+        LocalDate next;
+        try {
+            if (value.length() == 4) {
+                start = LocalDate.of(Integer.parseInt(value), 1, 1);
+                next = start.plusYears(1);
+            } else {
+                start = LocalDate.parse(value);
+                next = start.plusDays(1);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid date " + value, e);
+        }
+        return roundUp ? PersonAggregations.millis(next) - 1 : PersonAggregations.millis(start);
+    }
+
+    private static org.apache.lucene.search.Query boost(org.apache.lucene.search.Query query, Float boost) {
+        return boost == null || boost == 1f ? query : new BoostQuery(query, boost);
+    }
+
+    private static Analyzer searchAnalyzer(String field) {
+        // The ngram sub fields are searched with the simple analyzer, see person.json
+        return field.endsWith(NGRAM_SUFFIX) ? SIMPLE : STANDARD;
+    }
+
+    private static List<String> analyze(Analyzer analyzer, String field, String text) {
+        List<String> terms = new ArrayList<>();
+        try (TokenStream tokens = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                terms.add(term.toString());
+            }
+            tokens.end();
+        } catch (IOException e) {
+            // We only read from a String
+            throw new UncheckedIOException(e);
+        }
+        return terms;
+    }
+
+    private static String text(FieldValue value) {
+        return value.isString() ? value.stringValue() : String.valueOf(value._get());
+    }
+
+    private static String text(JsonData value) {
+        JsonValue json = value.toJson(JSONP_MAPPER);
+        return json instanceof JsonString ? ((JsonString) json).getString() : json.toString();
+    }
+}
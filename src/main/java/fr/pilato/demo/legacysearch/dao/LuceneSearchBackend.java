@@ -0,0 +1,505 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.TotalHitsRelation;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.Strings;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static fr.pilato.demo.legacysearch.dao.LuceneQueries.DATE_OF_BIRTH;
+import static fr.pilato.demo.legacysearch.dao.LuceneQueries.ID;
+import static fr.pilato.demo.legacysearch.dao.LuceneQueries.SOURCE;
+
+/**
+ * Search backend running in the application with Lucene. The fields are analyzed like person.json
+ * defines them and the responses have the format of elasticsearch, so the frontend does not see
+ * the difference. It is meant for a single node: there is one shard, so the routing is ignored.
+ * <p>
+ * The index lives in memory unless {@code app.lucene.path} is set. There is no reindex for this backend:
+ * an index lost with a restart stays empty until an init generates the persons of the database again.
+ */
+@Component
+@ConditionalOnProperty(name = "app.search.backend", havingValue = "lucene")
+public class LuceneSearchBackend implements SearchBackend {
+    private final Logger logger = LoggerFactory.getLogger(LuceneSearchBackend.class);
+
+    private static final String INDEX = "person";
+    private static final String COUNTRY = "address.country.keyword";
+    private static final String CHILDREN = "children";
+    // Same as the default index.max_result_window of elasticsearch: Lucene allocates a queue of from + size hits
+    private static final int MAX_RESULT_WINDOW = 10_000;
+    private static final Sort CURSOR_SORT = new Sort(SortField.FIELD_SCORE, new SortField("id", SortField.Type.LONG));
+
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ScheduledExecutorService refresher;
+    private final ObjectMapper mapper;
+    private final JacksonJsonpMapper jacksonJsonpMapper;
+
+    public LuceneSearchBackend(ObjectMapper mapper,
+                               @Value("${app.lucene.path:}") String path,
+                               @Value("${app.lucene.refresh-interval:1s}") Duration refreshInterval) throws IOException {
+        this.mapper = mapper;
+        this.jacksonJsonpMapper = new JacksonJsonpMapper(mapper);
+        directory = Strings.isEmpty(path) ? new ByteBuffersDirectory() : FSDirectory.open(Paths.get(path));
+        writer = new IndexWriter(directory, new IndexWriterConfig(LuceneQueries.INDEX_ANALYZER)
+                // Like the elasticsearch index, see person.json
+                .setIndexSort(new Sort(new SortField(DATE_OF_BIRTH, SortField.Type.LONG))));
+        searcherManager = new SearcherManager(writer, null);
+
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lucene-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                logger.warn("Can not refresh the lucene index", e);
+            }
+        }, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+        logger.info("Lucene index opened {} with {} persons", Strings.isEmpty(path) ? "in memory" : "in " + path,
+                writer.getDocStats().numDocs);
+    }
+
+    private Document document(Person person) throws IOException {
+        Document document = new Document();
+        document.add(new StringField(ID, person.idAsString(), Field.Store.NO));
+        document.add(new NumericDocValuesField("id", person.getId()));
+        document.add(new StoredField(SOURCE, new BytesRef(mapper.writeValueAsBytes(person))));
+        text(document, "name", person.getName(), false);
+        text(document, "gender", person.getGender(), true);
+        if (person.getAddress() != null) {
+            text(document, "address.city", person.getAddress().getCity(), true);
+            text(document, "address.country", person.getAddress().getCountry(), true);
+            keyword(document, "address.countrycode", person.getAddress().getCountrycode());
+            keyword(document, "address.zipcode", person.getAddress().getZipcode());
+        }
+        if (person.getDateOfBirth() != null) {
+            long millis = PersonAggregations.millis(person.getDateOfBirth());
+            document.add(new LongPoint(DATE_OF_BIRTH, millis));
+            document.add(new NumericDocValuesField(DATE_OF_BIRTH, millis));
+        }
+        if (person.getChildren() != null) {
+            document.add(new LongPoint(CHILDREN, person.getChildren()));
+            document.add(new NumericDocValuesField(CHILDREN, person.getChildren()));
+        }
+        return document;
+    }
+
+    /**
+     * A text field with its ngram sub field and, optionally, its keyword sub field
+     */
+    private static void text(Document document, String field, String value, boolean withKeyword) {
+        if (value == null) {
+            return;
+        }
+        document.add(new TextField(field, value, Field.Store.NO));
+        document.add(new TextField(field + ".ngram", value, Field.Store.NO));
+        if (withKeyword) {
+            keyword(document, field + ".keyword", value);
+        }
+    }
+
+    private static void keyword(Document document, String field, String value) {
+        if (value == null) {
+            return;
+        }
+        document.add(new StringField(field, value, Field.Store.NO));
+        document.add(new SortedDocValuesField(field, new BytesRef(value)));
+    }
+
+    private void write(Person person) throws IOException {
+        writer.updateDocument(new Term(ID, person.idAsString()), document(person));
+    }
+
+    @Override
+    public void saveAll(Iterable<Person> persons) {
+        try {
+            for (Person person : persons) {
+                write(person);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Set<String> bulk(Iterable<Person> persons, Map<Person, Map<String, Object>> updates,
+                            Map<Integer, Set<String>> deletes, Refresh refresh) throws IOException {
+        for (Integer id : deletes.keySet()) {
+            writer.deleteDocuments(new Term(ID, String.valueOf(id)));
+        }
+        for (Person person : persons) {
+            write(person);
+        }
+        // We have the whole person: no need to merge the partial document
+        for (Person person : updates.keySet()) {
+            write(person);
+        }
+        if (refresh != null && refresh != Refresh.False) {
+            searcherManager.maybeRefreshBlocking();
+        }
+        return Collections.emptySet();
+    }
+
+    @Override
+    public String search(Query query, String routing, Integer from, Integer size, String cursor,
+                         Map<String, Aggregate> aggregations) throws IOException {
+        long start = System.nanoTime();
+        checkWindow(from, size, cursor);
+        org.apache.lucene.search.Query luceneQuery = LuceneQueries.toLucene(query);
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            List<Hit<Person>> hits = new ArrayList<>();
+            Long total = null;
+            Double maxScore = null;
+            if (Strings.isEmpty(cursor)) {
+                TopDocs topDocs = searcher.search(luceneQuery, Math.max(from + size, 1));
+                total = (long) searcher.count(luceneQuery);
+                StoredFields storedFields = searcher.storedFields();
+                for (int i = from; i < topDocs.scoreDocs.length; i++) {
+                    hits.add(hit(storedFields, topDocs.scoreDocs[i], null));
+                }
+                if (topDocs.scoreDocs.length > 0) {
+                    maxScore = (double) topDocs.scoreDocs[0].score;
+                }
+            } else {
+                FieldDoc after = FIRST_PAGE.equals(cursor) ? null : after(cursor, searcher.getIndexReader().maxDoc());
+                TopDocs topDocs = searcher.searchAfter(after, luceneQuery, Math.max(size, 1), CURSOR_SORT, true);
+                if (FIRST_PAGE.equals(cursor)) {
+                    // Only the first page tells how many persons match
+                    total = (long) searcher.count(luceneQuery);
+                }
+                StoredFields storedFields = searcher.storedFields();
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    FieldDoc fieldDoc = (FieldDoc) scoreDoc;
+                    hits.add(hit(storedFields, scoreDoc, List.of(
+                            FieldValue.of(((Float) fieldDoc.fields[0]).doubleValue()),
+                            FieldValue.of(((Long) fieldDoc.fields[1]).longValue()))));
+                }
+            }
+            return toJson(start, hits, total, maxScore, aggregations, cursor, size);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the page goes beyond the first {@link #MAX_RESULT_WINDOW} hits.
+     *         Deeper pages must be read with a cursor.
+     */
+    private static void checkWindow(Integer from, Integer size, String cursor) {
+        long window = Strings.isEmpty(cursor) ? (long) from + size : size;
+        if (from < 0 || size < 0 || window > MAX_RESULT_WINDOW) {
+            throw new IllegalArgumentException("Result window is too large, from + size must be less than or equal to: ["
+                    + MAX_RESULT_WINDOW + "] but was [" + window + "]. Use a cursor to read deeper pages.");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the cursor has not been built by this backend
+     */
+    private static FieldDoc after(String cursor, int maxDoc) {
+        List<FieldValue> values = SearchCursor.decode(cursor);
+        if (values.size() != 2 || !(values.get(0).isDouble() || values.get(0).isLong()) || !values.get(1).isLong()) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        float score = values.get(0).isDouble() ? (float) values.get(0).doubleValue() : values.get(0).longValue();
+        // Lucene breaks the ties with the document number: the last one skips the hit of the cursor itself
+        return new FieldDoc(maxDoc - 1, score, new Object[] { score, values.get(1).longValue() });
+    }
+
+    private Hit<Person> hit(StoredFields storedFields, ScoreDoc scoreDoc, List<FieldValue> sort) throws IOException {
+        Person person = source(storedFields, scoreDoc.doc);
+        return Hit.of(h -> {
+            h.index(INDEX)
+                    .id(person.idAsString())
+                    .score((double) scoreDoc.score)
+                    .source(person);
+            if (sort != null) {
+                h.sort(sort);
+            }
+            return h;
+        });
+    }
+
+    private Person source(StoredFields storedFields, int doc) throws IOException {
+        BytesRef source = storedFields.document(doc).getBinaryValue(SOURCE);
+        return mapper.readValue(source.bytes, source.offset, source.length, Person.class);
+    }
+
+    private String toJson(long start, List<Hit<Person>> hits, Long total, Double maxScore,
+                          Map<String, Aggregate> aggregations, String cursor, Integer size) {
+        SearchResponse<Person> response = SearchResponse.of(sr -> sr
+                .took(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .timedOut(false)
+                .shards(s -> s.total(1).successful(1).failed(0))
+                .hits(h -> {
+                    h.hits(hits).maxScore(maxScore);
+                    if (total != null) {
+                        h.total(t -> t.value(total).relation(TotalHitsRelation.Eq));
+                    }
+                    return h;
+                })
+                .aggregations(aggregations));
+        String json = JsonpUtils.toJsonString(response, jacksonJsonpMapper);
+        if (Strings.isEmpty(cursor) || hits.size() < size || hits.isEmpty()) {
+            return json;
+        }
+        // Same format as elasticsearch: the next cursor is the first field
+        String nextCursor = SearchCursor.encode(hits.get(hits.size() - 1).sort());
+        return "{\"next_cursor\":\"" + nextCursor + "\"," + json.substring(1);
+    }
+
+    @Override
+    public CompletableFuture<String> searchAsync(Query query, String routing, Integer from, Integer size, String cursor,
+                                                 CompletableFuture<Map<String, Aggregate>> aggregations) {
+        checkWindow(from, size, cursor);
+        // Nothing to wait for but the CPU: the search runs in the calling thread once the aggregations are known
+        return aggregations.thenApply(aggs -> {
+            try {
+                return search(query, routing, from, size, cursor, aggs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public void rawSearch(Query query, String routing, Integer from, Integer size, OutputStream out) throws IOException {
+        out.write(search(query, routing, from, size, null, aggregations(query, routing)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Map<String, Aggregate> aggregations(Query query, String routing) throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return searcher.search(LuceneQueries.toLucene(query), new AggregationsCollectorManager());
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Aggregate>> aggregationsAsync(Query query, String routing) {
+        try {
+            return CompletableFuture.completedFuture(aggregations(query, routing));
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Reads the whole index in the calling thread: pageSize and slices do not apply here.
+     */
+    @Override
+    public long scan(int pageSize, int slices, Consumer<Person> consumer) throws IOException {
+        long count = 0;
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                LeafReader reader = leaf.reader();
+                StoredFields storedFields = reader.storedFields();
+                Bits liveDocs = reader.getLiveDocs();
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        consumer.accept(source(storedFields, doc));
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+        return count;
+    }
+
+    @Override
+    public void deleteAll() throws IOException {
+        logger.warn("Removing all the persons from the lucene index");
+        writer.deleteAll();
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        try {
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        } catch (IOException e) {
+            logger.warn("Can not close the lucene index", e);
+        }
+    }
+
+    /**
+     * Computes the same aggregations as elasticsearch: the top countries with the number of persons and
+     * the average number of children per decade of birth, and the number of persons per year of birth.
+     */
+    private static class AggregationsCollector extends SimpleCollector {
+        private final Map<String, Map<Long, long[]>> decadesByCountry = new HashMap<>();
+        private final Map<String, Long> countByCountry = new HashMap<>();
+        private final Map<Long, Long> countByYear = new HashMap<>();
+
+        private SortedDocValues countries;
+        private NumericDocValues datesOfBirth;
+        private NumericDocValues children;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            countries = DocValues.getSorted(context.reader(), COUNTRY);
+            datesOfBirth = DocValues.getNumeric(context.reader(), DATE_OF_BIRTH);
+            children = DocValues.getNumeric(context.reader(), CHILDREN);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            Long dateOfBirth = datesOfBirth.advanceExact(doc) ? datesOfBirth.longValue() : null;
+            if (dateOfBirth != null) {
+                countByYear.merge(PersonAggregations.yearStart(dateOfBirth), 1L, Long::sum);
+            }
+            if (!countries.advanceExact(doc)) {
+                return;
+            }
+            String country = countries.lookupOrd(countries.ordValue()).utf8ToString();
+            countByCountry.merge(country, 1L, Long::sum);
+            if (dateOfBirth != null) {
+                // count, sum of the children, number of persons with children
+                long[] decade = decadesByCountry.computeIfAbsent(country, c -> new HashMap<>())
+                        .computeIfAbsent(PersonAggregations.decadeStart(dateOfBirth), d -> new long[3]);
+                decade[0]++;
+                if (children.advanceExact(doc)) {
+                    decade[1] += children.longValue();
+                    decade[2]++;
+                }
+            }
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        void merge(AggregationsCollector other) {
+            other.countByCountry.forEach((country, count) -> countByCountry.merge(country, count, Long::sum));
+            other.countByYear.forEach((year, count) -> countByYear.merge(year, count, Long::sum));
+            other.decadesByCountry.forEach((country, decades) -> decades.forEach((decade, values) -> {
+                long[] merged = decadesByCountry.computeIfAbsent(country, c -> new HashMap<>())
+                        .computeIfAbsent(decade, d -> new long[3]);
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] += values[i];
+                }
+            }));
+        }
+
+        Map<String, Aggregate> aggregations() {
+            return PersonAggregations.aggregations(countByCountry,
+                    country -> PersonAggregations.byDecade(decadesByCountry.getOrDefault(country, Collections.emptyMap())),
+                    countByYear);
+        }
+    }
+
+    /**
+     * One collector per slice of the index, merged once they are all done.
+     */
+    private static class AggregationsCollectorManager implements CollectorManager<AggregationsCollector, Map<String, Aggregate>> {
+        @Override
+        public AggregationsCollector newCollector() {
+            return new AggregationsCollector();
+        }
+
+        @Override
+        public Map<String, Aggregate> reduce(Collection<AggregationsCollector> collectors) {
+            AggregationsCollector merged = new AggregationsCollector();
+            collectors.forEach(merged::merge);
+            return merged.aggregations();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.dao;
+
+import fr.pilato.demo.legacysearch.domain.OutboxEntry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Outbox Repository.
+ */
+public interface OutboxRepository extends CrudRepository<OutboxEntry, Long> {
+
+    /**
+     * @return the oldest entries which have been refused less than maxAttempts times
+     */
+    List<OutboxEntry> findByAttemptsLessThanOrderByIdAsc(int maxAttempts, Pageable pageable);
+
+    long countByAttemptsLessThan(int maxAttempts);
+
+    long countByAttemptsGreaterThanEqual(int maxAttempts);
+
+    @Modifying
+    @Transactional
+    @Query("update OutboxEntry e set e.attempts = e.attempts + 1 where e.id in ?1")
+    void incrementAttempts(Collection<Long> ids);
+
+    @Modifying
+    @Transactional
+    @Query("delete from OutboxEntry e where e.id in ?1")
+    void deleteByIds(Collection<Long> ids);
+
+    /**
+     * Delete all the entries with a single statement, without loading them first like {@link #deleteAll()}.
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from OutboxEntry")
+    void deleteAllInBulk();
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.DateHistogramBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.StringTermsBucket;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Builds the aggregations of the search responses from counts computed elsewhere than in
+ * elasticsearch. They have the same buckets as the ones {@link ElasticsearchDao} asks for:
+ * by_country, the 10 most frequent countries with the persons by decade and their average
+ * number of children, and by_year, the persons by year of birth.
+ */
+public final class PersonAggregations {
+
+    public static final String BY_COUNTRY = "by_country";
+    public static final String BY_YEAR = "by_year";
+    public static final String AVG_CHILDREN = "avg_children";
+
+    /**
+     * Width of the decades of by_country. They are fixed intervals starting from the epoch.
+     */
+    public static final long DECADE = TimeUnit.DAYS.toMillis(3653);
+    /**
+     * Extended bounds of the histograms: their buckets exist even when they are empty
+     */
+    public static final int MIN_YEAR = 1940;
+    public static final int MAX_YEAR = 2009;
+    private static final int COUNTRIES = 10;
+
+    private PersonAggregations() {
+    }
+
+    /**
+     * @param countByCountry number of persons, by country
+     * @param byDecade       gives the decades of a country, see {@link #byDecade(Map)}
+     */
+    public static Map<String, Aggregate> aggregations(Map<String, Long> countByCountry,
+                                                      Function<String, Aggregate> byDecade,
+                                                      Map<Long, Long> countByYear) {
+        Map<String, Aggregate> aggregations = new HashMap<>();
+        aggregations.put(BY_COUNTRY, byCountry(countByCountry, byDecade));
+        aggregations.put(BY_YEAR, byYear(countByYear));
+        return aggregations;
+    }
+
+    private static Aggregate byCountry(Map<String, Long> countByCountry, Function<String, Aggregate> byDecade) {
+        // Most frequent countries first, then by name
+        List<Map.Entry<String, Long>> countries = new ArrayList<>(countByCountry.entrySet());
+        countries.removeIf(country -> country.getValue() == 0);
+        countries.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        long others = 0;
+        List<StringTermsBucket> countryBuckets = new ArrayList<>();
+        for (int i = 0; i < countries.size(); i++) {
+            Map.Entry<String, Long> country = countries.get(i);
+            if (i >= COUNTRIES) {
+                others += country.getValue();
+                continue;
+            }
+            Aggregate decades = byDecade.apply(country.getKey());
+            countryBuckets.add(StringTermsBucket.of(b -> b
+                    .key(FieldValue.of(country.getKey()))
+                    .docCount(country.getValue())
+                    .aggregations(BY_YEAR, decades)));
+        }
+        long sumOtherDocCount = others;
+        return Aggregate.of(a -> a.sterms(st -> st
+                .buckets(bu -> bu.array(countryBuckets))
+                .sumOtherDocCount(sumOtherDocCount)
+                .docCountErrorUpperBound(0L)));
+    }
+
+    /**
+     * @param countByYear number of persons, by start of their year of birth
+     */
+    private static Aggregate byYear(Map<Long, Long> countByYear) {
+        TreeMap<Long, Long> years = new TreeMap<>(countByYear);
+        // Empty buckets from 1940 to 2009 at least, like the extended bounds
+        long min = Math.min(millis(LocalDate.of(MIN_YEAR, 1, 1)), years.isEmpty() ? Long.MAX_VALUE : years.firstKey());
+        long max = Math.max(millis(LocalDate.of(MAX_YEAR, 1, 1)), years.isEmpty() ? Long.MIN_VALUE : years.lastKey());
+        List<DateHistogramBucket> buckets = new ArrayList<>();
+        for (long key = min; key <= max; key = nextYearStart(key)) {
+            buckets.add(dateBucket(key, years.getOrDefault(key, 0L), null));
+        }
+        return Aggregate.of(a -> a.dateHistogram(dh -> dh.buckets(bu -> bu.array(buckets))));
+    }
+
+    /**
+     * @param decades by start of decade (see {@link #decadeStart(long)}): the number of persons, the sum
+     *                of their children and the number of persons whose number of children is known
+     */
+    public static Aggregate byDecade(Map<Long, long[]> decades) {
+        TreeMap<Long, long[]> sorted = new TreeMap<>(decades);
+        long min = decadeStart(Math.min(millis(LocalDate.of(MIN_YEAR, 1, 1)), sorted.isEmpty() ? Long.MAX_VALUE : sorted.firstKey()));
+        long max = Math.max(millis(LocalDate.of(MAX_YEAR, 1, 1)), sorted.isEmpty() ? Long.MIN_VALUE : sorted.lastKey());
+        List<DateHistogramBucket> buckets = new ArrayList<>();
+        for (long key = min; key <= max; key += DECADE) {
+            long[] decade = sorted.getOrDefault(key, new long[3]);
+            // NaN is written as null, like elasticsearch does without any value
+            double average = decade[2] == 0 ? Double.NaN : (double) decade[1] / decade[2];
+            buckets.add(dateBucket(key, decade[0], Aggregate.of(a -> a.avg(avg -> avg.value(average)))));
+        }
+        return Aggregate.of(a -> a.dateHistogram(dh -> dh.buckets(bu -> bu.array(buckets))));
+    }
+
+    private static DateHistogramBucket dateBucket(long key, long docCount, Aggregate avgChildren) {
+        return DateHistogramBucket.of(b -> {
+            // The format of the aggregations is 8yyyy: the year only
+            b.key(key)
+                    .keyAsString(String.valueOf(Instant.ofEpochMilli(key).atZone(ZoneOffset.UTC).getYear()))
+                    .docCount(docCount);
+            if (avgChildren != null) {
+                b.aggregations(AVG_CHILDREN, avgChildren);
+            }
+            return b;
+        });
+    }
+
+    /**
+     * @return the start of the decade of by_country holding the date, in milliseconds since the epoch
+     */
+    public static long decadeStart(long millis) {
+        return Math.floorDiv(millis, DECADE) * DECADE;
+    }
+
+    /**
+     * @return the start of the year holding the date, in milliseconds since the epoch
+     */
+    public static long yearStart(long millis) {
+        return millis(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate().withDayOfYear(1));
+    }
+
+    private static long nextYearStart(long yearStart) {
+        return millis(Instant.ofEpochMilli(yearStart).atZone(ZoneOffset.UTC).toLocalDate().plusYears(1));
+    }
+
+    public static long millis(LocalDate date) {
+        return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+}
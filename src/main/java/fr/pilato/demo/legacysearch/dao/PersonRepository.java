@@ -21,17 +21,71 @@ package fr.pilato.demo.legacysearch.dao;
 import fr.pilato.demo.legacysearch.domain.Person;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.data.repository.query.QueryByExampleExecutor;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
 
 
 /**
  * Person Repository.
+ * <p>
+ * Address and Marketing are fetched with the persons in the same query (see {@link EntityGraph}),
+ * otherwise Hibernate runs two more selects for every person returned by a query.
  */
 public interface PersonRepository extends PagingAndSortingRepository<Person, Integer>, QueryByExampleExecutor<Person>, CrudRepository<Person, Integer> {
 
+    @Override
+    @EntityGraph(attributePaths = { "address", "marketing" })
+    Iterable<Person> findAll();
+
+    @Override
+    @EntityGraph(attributePaths = { "address", "marketing" })
+    Iterable<Person> findAllById(Iterable<Integer> ids);
+
+    @EntityGraph(attributePaths = { "address", "marketing" })
     @Query("select p from Person p where p.name like %?1% or p.address.country like %?1% or p.address.city like %?1%")
     Page<Person> findLikeGoogle(String query, Pageable pageable);
+
+    @Query("select min(p.id) from Person p")
+    Integer findMinId();
+
+    @Query("select max(p.id) from Person p")
+    Integer findMaxId();
+
+    /**
+     * Keyset pagination: read the persons with an id in ]after, last], ordered by id.
+     * Unlike an offset, reading the next page costs the same whatever the page number.
+     */
+    @EntityGraph(attributePaths = { "address", "marketing" })
+    @Query("select p from Person p where p.id > ?1 and p.id <= ?2 order by p.id")
+    List<Person> findIdRange(Integer after, Integer last, Pageable pageable);
+
+    /**
+     * Delete all the persons, their addresses and marketing data with three statements,
+     * without loading them first like {@link #deleteAll()}.
+     */
+    @Transactional
+    default void deleteAllInBulk() {
+        deleteAllPersons();
+        deleteAllAddresses();
+        deleteAllMarketing();
+    }
+
+    @Modifying
+    @Query("delete from Person")
+    void deleteAllPersons();
+
+    @Modifying
+    @Query("delete from Address")
+    void deleteAllAddresses();
+
+    @Modifying
+    @Query("delete from Marketing")
+    void deleteAllMarketing();
 }
@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.Strings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Where persons are indexed and searched. Queries and aggregations are described with the
+ * elasticsearch DSL and responses are written in the elasticsearch format, whatever the
+ * implementation, so the service and the frontend do not depend on it.
+ * <p>
+ * The backend is selected with {@code app.search.backend}: {@code elasticsearch} (the default,
+ * see {@link ElasticsearchDao}) or {@code lucene} (see {@link LuceneSearchBackend}).
+ */
+public interface SearchBackend extends AutoCloseable {
+
+    /**
+     * Cursor to give to {@link #search(Query, String, Integer, Integer, String, Map)} to read the first page
+     */
+    String FIRST_PAGE = "*";
+
+    /**
+     * Persons are routed by country, so a search filtered on one country only asks one shard.
+     * @return the routing of the person, or null when it has no country: it is then routed by id
+     */
+    static String routing(Person person) {
+        return person.getAddress() == null ? null : routing(person.getAddress().getCountry());
+    }
+
+    /**
+     * The routing of the persons of a country. Documents and searches filtered on address.country.keyword
+     * are both routed with it, so a search finds all the persons its filter matches.
+     * @return the routing, or null when there is no country
+     */
+    static String routing(String country) {
+        return Strings.hasText(country) ? country.trim() : null;
+    }
+
+    /**
+     * Index documents in the background. They become searchable a bit later.
+     */
+    void saveAll(Iterable<Person> persons);
+
+    /**
+     * Synchronously delete, index and partially update documents.
+     * @param updates partial documents to apply, by person as it is now in the database
+     * @param deletes routings the documents to delete were indexed with, by person id. A null routing
+     *                deletes the document routed by id.
+     * @param refresh how the documents must be made visible to search before returning, null to not wait
+     * @return the ids of the documents which could not be indexed, updated or deleted
+     */
+    Set<String> bulk(Iterable<Person> persons, Map<Person, Map<String, Object>> updates,
+                     Map<Integer, Set<String>> deletes, Refresh refresh) throws IOException;
+
+    /**
+     * Search for persons. Only the hits are computed: the aggregations are given by the caller
+     * as they do not depend on the page. See {@link #aggregations(Query, String)}.
+     * @param routing   {@link #routing(String)} of the country when the query only matches persons of this country.
+     *                  Null to search them all.
+     * @param cursor    null or empty to read the page starting at from. Otherwise, from is ignored: the hits are
+     *                  sorted by score and id and the page starts after the cursor. {@link #FIRST_PAGE} reads the
+     *                  first page. The response then holds a next_cursor field, absent after the last page.
+     * @return the response as JSON
+     * @throws IllegalArgumentException if the cursor or the query is not valid
+     */
+    String search(Query query, String routing, Integer from, Integer size, String cursor,
+                  Map<String, Aggregate> aggregations) throws IOException;
+
+    /**
+     * Same as {@link #search(Query, String, Integer, Integer, String, Map)} without blocking the calling thread.
+     */
+    CompletableFuture<String> searchAsync(Query query, String routing, Integer from, Integer size, String cursor,
+                                          CompletableFuture<Map<String, Aggregate>> aggregations);
+
+    /**
+     * Search for persons with the aggregations and write the JSON response to the output stream.
+     */
+    void rawSearch(Query query, String routing, Integer from, Integer size, OutputStream out) throws IOException;
+
+    /**
+     * Compute the aggregations of a query without fetching any hit.
+     * @param routing see {@link #search(Query, String, Integer, Integer, String, Map)}
+     */
+    Map<String, Aggregate> aggregations(Query query, String routing) throws IOException;
+
+    /**
+     * Same as {@link #aggregations(Query, String)} without blocking the calling thread.
+     */
+    CompletableFuture<Map<String, Aggregate>> aggregationsAsync(Query query, String routing);
+
+    /**
+     * Read all the persons. Memory usage only depends on the page size, whatever the number of persons.
+     * @param pageSize  number of persons read at once
+     * @param slices    number of slices read in parallel. When more than 1, the consumer
+     *                  may be called from several threads and must be thread safe.
+     * @param consumer  called for every person
+     * @return the number of persons read
+     */
+    long scan(int pageSize, int slices, Consumer<Person> consumer) throws IOException;
+
+    void deleteAll() throws IOException;
+
+    @Override
+    void close();
+}
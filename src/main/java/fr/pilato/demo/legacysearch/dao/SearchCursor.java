@@ -0,0 +1,90 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.dao;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Opaque cursor given to the clients to read the next page of a search. It holds the sort
+ * values of the last hit of the previous page, which are sent back to elasticsearch as search_after.
+ */
+final class SearchCursor {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private SearchCursor() {
+    }
+
+    static String encode(List<FieldValue> sortValues) {
+        ArrayNode values = mapper.createArrayNode();
+        for (FieldValue value : sortValues) {
+            if (value.isLong()) {
+                values.add(value.longValue());
+            } else if (value.isDouble()) {
+                values.add(value.doubleValue());
+            } else if (value.isBoolean()) {
+                values.add(value.booleanValue());
+            } else if (value.isString()) {
+                values.add(value.stringValue());
+            } else {
+                values.addNull();
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(values.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the cursor has not been built by {@link #encode(List)}
+     */
+    static List<FieldValue> decode(String cursor) {
+        JsonNode values;
+        try {
+            values = mapper.readTree(Base64.getUrlDecoder().decode(cursor));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor, e);
+        }
+        if (values == null || !values.isArray()) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+
+        List<FieldValue> sortValues = new ArrayList<>(values.size());
+        for (JsonNode value : values) {
+            if (value.isIntegralNumber()) {
+                sortValues.add(FieldValue.of(value.longValue()));
+            } else if (value.isNumber()) {
+                sortValues.add(FieldValue.of(value.doubleValue()));
+            } else if (value.isBoolean()) {
+                sortValues.add(FieldValue.of(value.booleanValue()));
+            } else if (value.isTextual()) {
+                sortValues.add(FieldValue.of(value.textValue()));
+            } else {
+                sortValues.add(FieldValue.NULL);
+            }
+        }
+        return sortValues;
+    }
+}
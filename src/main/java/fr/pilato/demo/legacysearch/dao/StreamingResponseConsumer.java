@@ -0,0 +1,197 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.demo.legacysearch.dao;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.function.Function;
+
+/**
+ * Copies the body of a successful response to an output stream while it is being received,
+ * instead of buffering it in memory like the default consumer of the low level client does.
+ * <p>
+ * The I/O threads of the client only queue the chunks they read: they are written by the thread
+ * waiting for the response, so a slow reader does not block the other requests. When too many
+ * bytes are waiting, the client stops reading from the socket until the queue is drained.
+ * Error responses are small: they are buffered, so the client can build its ResponseException.
+ */
+class StreamingResponseConsumer implements HttpAsyncResponseConsumerFactory, ResponseListener {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_QUEUED_BYTES = 64 * CHUNK_SIZE;
+
+    private final Queue<byte[]> chunks = new ArrayDeque<>();
+    private long queuedBytes;
+    private IOControl suspended;
+    private boolean done;
+    private Exception failure;
+
+    /**
+     * Send the request and copy the response to the output stream.
+     * @param send sends the request with this consumer and notifies it, see
+     *             {@link org.elasticsearch.client.RestClient#performRequestAsync}
+     * @return the number of bytes written
+     */
+    static long copy(Function<StreamingResponseConsumer, Cancellable> send, OutputStream out) throws IOException {
+        StreamingResponseConsumer consumer = new StreamingResponseConsumer();
+        Cancellable cancellable = send.apply(consumer);
+        try {
+            long written = 0;
+            byte[] chunk;
+            while ((chunk = consumer.take()) != null) {
+                out.write(chunk);
+                written += chunk.length;
+            }
+            return written;
+        } catch (IOException | RuntimeException e) {
+            // The client went away: no need to read the rest of the response
+            cancellable.cancel();
+            throw e;
+        }
+    }
+
+    @Override
+    public HttpAsyncResponseConsumer<HttpResponse> createHttpAsyncResponseConsumer() {
+        // The client creates a consumer for every node it tries
+        return new Consumer();
+    }
+
+    @Override
+    public synchronized void onSuccess(Response response) {
+        done = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onFailure(Exception exception) {
+        failure = exception;
+        done = true;
+        notifyAll();
+    }
+
+    private synchronized void add(byte[] chunk, IOControl ioControl) {
+        chunks.add(chunk);
+        queuedBytes += chunk.length;
+        if (queuedBytes >= MAX_QUEUED_BYTES && suspended == null) {
+            ioControl.suspendInput();
+            suspended = ioControl;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the next chunk of the response, or null at the end of the response
+     */
+    private synchronized byte[] take() throws IOException {
+        try {
+            while (chunks.isEmpty() && !done) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the response");
+        }
+        byte[] chunk = chunks.poll();
+        if (chunk != null) {
+            queuedBytes -= chunk.length;
+            if (suspended != null && queuedBytes <= MAX_QUEUED_BYTES / 2) {
+                suspended.requestInput();
+                suspended = null;
+            }
+            return chunk;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        return null;
+    }
+
+    private class Consumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        private HttpResponse response;
+        private boolean streaming;
+        private ByteArrayOutputStream error;
+        private ContentType contentType;
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+            int status = response.getStatusLine().getStatusCode();
+            streaming = status >= 200 && status < 300;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            this.contentType = contentType;
+            if (!streaming) {
+                error = new ByteArrayOutputStream();
+            }
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            int read;
+            while ((read = decoder.read(buffer)) > 0) {
+                byte[] chunk = Arrays.copyOf(buffer.array(), read);
+                buffer.clear();
+                if (streaming) {
+                    add(chunk, ioControl);
+                } else {
+                    error.write(chunk);
+                }
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            // The body of a successful response has already been handed over
+            response.setEntity(error == null ? null : new ByteArrayEntity(error.toByteArray(), contentType));
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            error = null;
+        }
+    }
+}
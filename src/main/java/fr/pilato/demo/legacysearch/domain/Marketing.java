@@ -4,6 +4,7 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.SequenceGenerator;
 
 /**
  * We define here marketing meta data:
@@ -13,7 +14,8 @@ import jakarta.persistence.Id;
 public class Marketing {
 
     @Id
-    @GeneratedValue(strategy= GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "marketing_seq")
+    @SequenceGenerator(name = "marketing_seq", allocationSize = 100)
     private Integer id;
 
     private Integer cars;
@@ -0,0 +1,114 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.demo.legacysearch.domain;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Lob;
+import jakarta.persistence.SequenceGenerator;
+
+/**
+ * A person which has been modified in the database and which needs
+ * to be sent to elasticsearch. It is written in the same transaction
+ * as the person itself.
+ * When only some fields changed, partialDocument holds them as JSON
+ * so we can send a partial update instead of the whole document.
+ * When the person is deleted or moves to another country, previousRouting
+ * tells where elasticsearch holds the document to remove.
+ * attempts counts the times elasticsearch refused the entry: the relay
+ * gives up after a few of them and keeps the entry as a dead letter.
+ */
+@Entity
+public class OutboxEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_seq")
+    @SequenceGenerator(name = "outbox_seq", allocationSize = 100)
+    private Long id;
+
+    private Integer personId;
+
+    @Lob
+    private String partialDocument;
+
+    private String previousRouting;
+
+    private int attempts;
+
+    public OutboxEntry() {
+    }
+
+    public OutboxEntry(Integer personId) {
+        this.personId = personId;
+    }
+
+    public OutboxEntry(Integer personId, String partialDocument) {
+        this.personId = personId;
+        this.partialDocument = partialDocument;
+    }
+
+    public OutboxEntry(Integer personId, String partialDocument, String previousRouting) {
+        this.personId = personId;
+        this.partialDocument = partialDocument;
+        this.previousRouting = previousRouting;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Integer getPersonId() {
+        return personId;
+    }
+
+    public void setPersonId(Integer personId) {
+        this.personId = personId;
+    }
+
+    public String getPartialDocument() {
+        return partialDocument;
+    }
+
+    public void setPartialDocument(String partialDocument) {
+        this.partialDocument = partialDocument;
+    }
+
+    public String getPreviousRouting() {
+        return previousRouting;
+    }
+
+    public void setPreviousRouting(String previousRouting) {
+        this.previousRouting = previousRouting;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+}
@@ -19,23 +19,21 @@ class CsvReader {
         return data;
     }
 
-    static ArrayList extractFromCommas(String dataLine) {
+    static ArrayList<String> extractFromCommas(String dataLine) {
         //Gives back the data that is found between commas in a String
         ArrayList<String> data = new ArrayList<>();
-        String theString = "";
+        int start = 0;
         for (int i = 0; i < dataLine.length(); i++) { //go down the whole string
             if (dataLine.charAt(i) == ',') {
                 if (i != 0) {
-                    data.add(theString); //this means that the next comma has been reached
-                    theString = ""; //reset theString Variable
+                    data.add(dataLine.substring(start, i)); //this means that the next comma has been reached
                 }
-            } else {
-                theString = theString + dataLine.charAt(i); //otherwise, just keep piling the chars onto the cumulative string
+                start = i + 1;
             }
         }
-        if (!theString.equalsIgnoreCase("")) //only if the last position is not occupied with nothing then add the end on
+        if (start < dataLine.length()) //only if the last position is not occupied with nothing then add the end on
         {
-            data.add(theString);
+            data.add(dataLine.substring(start));
         }
         return data;
     }
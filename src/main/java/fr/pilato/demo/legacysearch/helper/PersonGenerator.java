@@ -9,233 +9,233 @@ import fr.pilato.demo.legacysearch.domain.Person;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Random;
-
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Generates random persons.
+ *
+ * All the data we pick from (names, countries, cities) is parsed once and never modified,
+ * so generation does not need any lock. Every thread uses its own {@link SplittableRandom}.
+ * When a seed is given, the person number {@code i} only depends on the seed and on {@code i},
+ * so the same dataset is generated whatever the number of threads.
+ */
 public class PersonGenerator {
 
-    private static ArrayList<String> names;
+    private static final String[] names;
+    private static final String[] genders;
 
     static {
         try {
-            PersonGenerator.names = CsvReader.readAsStrings("/prenoms.csv");
+            ArrayList<String> lines = CsvReader.readAsStrings("/prenoms.csv");
+            names = new String[lines.size()];
+            genders = new String[lines.size()];
+            for (int i = 0; i < lines.size(); i++) {
+                ArrayList<String> fields = CsvReader.extractFromCommas(lines.get(i));
+                names[i] = fields.get(0);
+                genders[i] = fields.get(1);
+            }
         } catch (IOException e) {
-            System.err.println("Can not generate names from CSV");
+            throw new IllegalStateException("Can not generate names from CSV", e);
         }
     }
 
-    public static Person personGenerator() throws IOException {
-        Person person = new Person();
-        buildGender(person);
-        person.setDateOfBirth(buildBirthDate());
-        person.setMarketing(buildMeta());
-        person.setAddress(buildAddress());
-        person.setChildren(buildChildren());
-
-        return person;
+    private static final Country[] countries = {
+            new Country("France", "FR",
+                    new City("Paris", "75000", 48.819918, 48.900552, 2.25929, 2.4158559),
+                    new City("Nantes", "44000", 47.157742, 47.270729, -1.623467, -1.471032),
+                    new City("Cergy", "95000", 49.019583, 49.059419, 2.003001, 2.090892)),
+            new Country("Germany", "DE",
+                    new City("Berlin", "9998", 52.364796, 52.639827, 13.115778, 13.769465),
+                    new City("Bonn", "0099", 50.649948, 50.766049, 7.025075, 7.214589),
+                    new City("Munich", "45445", 48.081337, 48.238441, 11.371548, 11.711437)),
+            new Country("England", "GB",
+                    new City("London", "98888", 51.444014, 51.607633, -0.294245, 0.064184),
+                    new City("Plymouth", "5226", 50.345272, 50.434797, -4.190161, -4.034636),
+                    new City("Liverpool", "86767", 53.345346, 53.496339, -3.047485, -2.564774)),
+            new Country("Italy", "IT",
+                    new City("Rome", "00100", 41.797211, 41.980805, 12.373950, 12.601393),
+                    new City("Turin", "10100", 45.007912, 45.122125, 7.593528, 7.747337),
+                    new City("Ischia", "80100", 40.704982, 40.758477, 13.859360, 13.953002))
+    };
+
+    private static final List<BiConsumer<Marketing, Integer>> marketingSetters = List.of(
+            Marketing::setShoes,
+            Marketing::setToys,
+            Marketing::setFashion,
+            Marketing::setMusic,
+            Marketing::setGarden,
+            Marketing::setElectronic,
+            Marketing::setHifi,
+            Marketing::setCars,
+            Marketing::setFood
+    );
+
+    private static final ThreadLocal<SplittableRandom> threadRandom = ThreadLocal.withInitial(SplittableRandom::new);
+
+    /**
+     * Generate a random person using the random generator of the current thread.
+     */
+    public static Person personGenerator() {
+        return personGenerator(threadRandom.get());
     }
 
-    private static Marketing buildMeta() {
-        Marketing marketing = new Marketing();
-        int nbMeta = numberGenerator(1, 5);
+    /**
+     * Generate the person number {@code index} of the dataset identified by {@code seed}.
+     * Calling it twice with the same parameters gives the same person.
+     */
+    public static Person personGenerator(long seed, long index) {
+        // Mixing the seed first: with seed + index, dataset n + 1 would be dataset n shifted by one person
+        return personGenerator(new SplittableRandom(mix(mix(seed) + index)));
+    }
 
-        for (int i = 0; i < nbMeta; i++) {
-            int nbConsult = numberGenerator(30, 2000);
-            int typeMeta = numberGenerator(0, 9);
-            switch (typeMeta) {
-                case 0:
-                    marketing.setShoes(nbConsult);
-                    break;
-                case 1:
-                    marketing.setToys(nbConsult);
-                    break;
-                case 2:
-                    marketing.setFashion(nbConsult);
-                    break;
-                case 3:
-                    marketing.setMusic(nbConsult);
-                    break;
-                case 4:
-                    marketing.setGarden(nbConsult);
-                    break;
-                case 5:
-                    marketing.setElectronic(nbConsult);
-                    break;
-                case 6:
-                    marketing.setHifi(nbConsult);
-                    break;
-                case 7:
-                    marketing.setCars(nbConsult);
-                    break;
-                case 8:
-                    marketing.setFood(nbConsult);
-                    break;
-                default:
-                    System.err.println("   ->" + typeMeta);
-                    break;
-            }
+    /**
+     * Generate {@code size} persons. The stream can be made parallel to use all the cores.
+     * @param seed the seed of the dataset. Use the same seed to get the same persons again.
+     */
+    public static Stream<Person> persons(long size, long seed) {
+        return LongStream.range(0, size).mapToObj(i -> personGenerator(seed, i));
+    }
 
+    /**
+     * Generate {@code size} random persons. The stream can be made parallel to use all the cores.
+     */
+    public static Stream<Person> persons(long size) {
+        return persons(size, ThreadLocalRandom.current().nextLong());
+    }
 
-        }
+    public static Person personGenerator(SplittableRandom random) {
+        Person person = new Person();
+        buildGender(person, random);
+        person.setDateOfBirth(buildBirthDate(random));
+        person.setMarketing(buildMeta(random));
+        person.setAddress(buildAddress(random));
+        person.setChildren(buildChildren(random));
 
-        return marketing;
+        return person;
+    }
 
+    /**
+     * Pick one of the first names persons are generated with.
+     */
+    public static String randomName(SplittableRandom random) {
+        return names[numberGenerator(random, 0, names.length)];
     }
 
-    private static LocalDate buildBirthDate() {
-        int year = numberGenerator(1940, 70);
-        int month = numberGenerator(1, 12);
-        int day = numberGenerator(1, 28);
-        return LocalDate.of(year, month, day);
+    /**
+     * Pick one of the countries persons are generated with.
+     */
+    public static String randomCountry(SplittableRandom random) {
+        return countries[numberGenerator(random, 0, countries.length)].name;
     }
 
-    private static void buildGender(Person person) throws IOException {
-        int pos = numberGenerator(0, names.size());
+    /**
+     * Pick one of the cities persons are generated with.
+     */
+    public static String randomCity(SplittableRandom random) {
+        Country country = countries[numberGenerator(random, 0, countries.length)];
+        return country.cities[numberGenerator(random, 0, country.cities.length)].name;
+    }
 
-        String line = names.get(pos);
-        ArrayList<String> temp =  CsvReader.extractFromCommas(line);
-        person.setName(temp.get(0) + " " + CsvReader.extractFromCommas(
-                names.get(numberGenerator(0, names.size()))).get(0));
-        person.setGender(temp.get(1));
+    /**
+     * Pick one of the decades persons are born in, like 1970.
+     */
+    public static int randomDecade(SplittableRandom random) {
+        return 1940 + 10 * numberGenerator(random, 0, 7);
     }
 
-    private static Address buildAddress() throws IOException {
-        Address address = new Address();
-        generateCountry(address);
-        Long result = Math.round(Math.random() * 2);
-
-        if ("FR".equals(address.getCountrycode())) {
-            switch (result.intValue()) {
-                case 0:
-                    address.setCity("Paris");
-                    address.setZipcode("75000");
-                    address.setLocation(new GeoPoint(doubleGenerator(48.819918, 48.900552), doubleGenerator(2.25929, 2.4158559)));
-                    break;
-                case 1:
-                    address.setCity("Nantes");
-                    address.setZipcode("44000");
-                    address.setLocation(new GeoPoint(doubleGenerator(47.157742, 47.270729), doubleGenerator(-1.623467, -1.471032)));
-                    break;
-                case 2:
-                    address.setCity("Cergy");
-                    address.setZipcode("95000");
-                    address.setLocation(new GeoPoint(doubleGenerator(49.019583, 49.059419), doubleGenerator(2.003001, 2.090892)));
-                    break;
-                default:
-                    System.err.println("buildAddress ->" + result.intValue());
-                    break;
-            }
-        }
+    private static Marketing buildMeta(SplittableRandom random) {
+        Marketing marketing = new Marketing();
+        int nbMeta = numberGenerator(random, 1, 5);
 
-        if ("GB".equals(address.getCountrycode())) {
-            switch (result.intValue()) {
-                case 0:
-                    address.setCity("London");
-                    address.setZipcode("98888");
-                    address.setLocation(new GeoPoint(doubleGenerator(51.444014, 51.607633), doubleGenerator(-0.294245, 0.064184)));
-                    break;
-                case 1:
-                    address.setCity("Plymouth");
-                    address.setZipcode("5226");
-                    address.setLocation(new GeoPoint(doubleGenerator(50.345272, 50.434797), doubleGenerator(-4.190161, -4.034636)));
-                    break;
-                case 2:
-                    address.setCity("Liverpool");
-                    address.setZipcode("86767");
-                    address.setLocation(new GeoPoint(doubleGenerator(53.345346, 53.496339), doubleGenerator(-3.047485, -2.564774)));
-                    break;
-                default:
-                    System.err.println("buildAddress ->" + result.intValue());
-                    break;
-            }
+        for (int i = 0; i < nbMeta; i++) {
+            int nbConsult = numberGenerator(random, 30, 2000);
+            int typeMeta = numberGenerator(random, 0, marketingSetters.size());
+            marketingSetters.get(typeMeta).accept(marketing, nbConsult);
         }
 
-        if ("DE".equals(address.getCountrycode())) {
-            switch (result.intValue()) {
-                case 0:
-                    address.setCity("Berlin");
-                    address.setZipcode("9998");
-                    address.setLocation(new GeoPoint(doubleGenerator(52.364796, 52.639827), doubleGenerator(13.115778, 13.769465)));
-                    break;
-                case 1:
-                    address.setCity("Bonn");
-                    address.setZipcode("0099");
-                    address.setLocation(new GeoPoint(doubleGenerator(50.649948, 50.766049), doubleGenerator(7.025075, 7.214589)));
-                    break;
-                case 2:
-                    address.setCity("Munich");
-                    address.setZipcode("45445");
-                    address.setLocation(new GeoPoint(doubleGenerator(48.081337, 48.238441), doubleGenerator(11.371548, 11.711437)));
-                    break;
-                default:
-                    System.err.println("buildAddress ->" + result.intValue());
-                    break;
-            }
-        }
+        return marketing;
+    }
 
-        if ("IT".equals(address.getCountrycode())) {
-            switch (result.intValue()) {
-                case 0:
-                    address.setCity("Rome");
-                    address.setZipcode("00100");
-                    address.setLocation(new GeoPoint(doubleGenerator(41.797211, 41.980805), doubleGenerator(12.373950, 12.601393)));
-                    break;
-                case 1:
-                    address.setCity("Turin");
-                    address.setZipcode("10100");
-                    address.setLocation(new GeoPoint(doubleGenerator(45.007912, 45.122125), doubleGenerator(7.593528, 7.747337)));
-                    break;
-                case 2:
-                    address.setCity("Ischia");
-                    address.setZipcode("80100");
-                    address.setLocation(new GeoPoint(doubleGenerator(40.704982, 40.758477), doubleGenerator(13.859360, 13.953002)));
-                    break;
-                default:
-                    System.err.println("buildAddress ->" + result.intValue());
-                    break;
-            }
-        }
+    private static LocalDate buildBirthDate(SplittableRandom random) {
+        int year = numberGenerator(random, 1940, 70);
+        int month = numberGenerator(random, 1, 12);
+        int day = numberGenerator(random, 1, 28);
+        return LocalDate.of(year, month, day);
+    }
 
+    private static void buildGender(Person person, SplittableRandom random) {
+        int pos = numberGenerator(random, 0, names.length);
+        person.setName(names[pos] + " " + names[numberGenerator(random, 0, names.length)]);
+        person.setGender(genders[pos]);
+    }
+
+    private static Address buildAddress(SplittableRandom random) {
+        Country country = countries[numberGenerator(random, 0, countries.length)];
+        // Like before, the second city of every country is picked twice as often as the others
+        City city = country.cities[(int) Math.round(random.nextDouble() * 2)];
+
+        Address address = new Address();
+        address.setCountry(country.name);
+        address.setCountrycode(country.code);
+        address.setCity(city.name);
+        address.setZipcode(city.zipcode);
+        address.setLocation(new GeoPoint(
+                doubleGenerator(random, city.minLat, city.maxLat),
+                doubleGenerator(random, city.minLon, city.maxLon)));
         return address;
     }
 
-    private static String generateCountry(Address address) {
-
-        int result = numberGenerator(0,4);
-
-        switch (result) {
-            case 0:
-                address.setCountry("France");
-                address.setCountrycode("FR");
-                break;
-            case 1:
-                address.setCountry("Germany");
-                address.setCountrycode("DE");
-                break;
-            case 2:
-                address.setCountry("England");
-                address.setCountrycode("GB");
-                break;
-            case 3:
-                address.setCountry("Italy");
-                address.setCountrycode("IT");
-                break;
-            default:
-                System.err.println("generateCountry ->" + result);
-                break;
-        }
+    private static Integer buildChildren(SplittableRandom random) {
+        return numberGenerator(random, 0, 5);
+    }
 
-        return null;
+    private static int numberGenerator(SplittableRandom random, int min, int range) {
+        return min + random.nextInt(range);
     }
 
-    private static Integer buildChildren() {
-        return numberGenerator(0,5);
+    private static double doubleGenerator(SplittableRandom random, double min, double max) {
+        return min + (max - min) * random.nextDouble();
     }
 
-    private static int numberGenerator(int min, int range) {
-        return (int) Math.floor(Math.random()*range+min);
+    // Stafford variant 13 of the murmur3 finalizer, so close seeds give unrelated sequences
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
     }
 
-    private static double doubleGenerator(double min, double max) {
-        return min + (max - min) * new Random().nextDouble();
+    private static class Country {
+        private final String name;
+        private final String code;
+        private final City[] cities;
+
+        private Country(String name, String code, City... cities) {
+            this.name = name;
+            this.code = code;
+            this.cities = cities;
+        }
+    }
+
+    private static class City {
+        private final String name;
+        private final String zipcode;
+        private final double minLat;
+        private final double maxLat;
+        private final double minLon;
+        private final double maxLon;
+
+        private City(String name, String zipcode, double minLat, double maxLat, double minLon, double maxLon) {
+            this.name = name;
+            this.zipcode = zipcode;
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLon = minLon;
+            this.maxLon = maxLon;
+        }
     }
 }
@@ -0,0 +1,60 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import co.elastic.clients.elasticsearch._types.Refresh;
+import fr.pilato.demo.legacysearch.webapp.BadRequestException;
+
+import java.util.Locale;
+
+/**
+ * When a write must be visible in search results before we answer to the client.
+ */
+public enum Consistency {
+    /**
+     * Do not wait. The outbox relay will index the document soon.
+     */
+    NONE(null),
+    /**
+     * Relay the outbox right away and wait for the next periodic refresh of the index.
+     */
+    WAIT_FOR(Refresh.WaitFor),
+    /**
+     * Relay the outbox right away and force a refresh of the shards holding the document. Expensive, use it with care.
+     */
+    IMMEDIATE(Refresh.True);
+
+    private final Refresh refresh;
+
+    Consistency(Refresh refresh) {
+        this.refresh = refresh;
+    }
+
+    public Refresh getRefresh() {
+        return refresh;
+    }
+
+    public static Consistency fromString(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("consistency must be one of none, wait_for or immediate");
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import fr.pilato.demo.legacysearch.dao.PersonAggregations;
+import fr.pilato.demo.legacysearch.dao.SearchBackend;
+import fr.pilato.demo.legacysearch.domain.Person;
+
+import static fr.pilato.demo.legacysearch.dao.PersonAggregations.MAX_YEAR;
+import static fr.pilato.demo.legacysearch.dao.PersonAggregations.MIN_YEAR;
+
+/**
+ * In memory counters of the persons by country and by date of birth, from which the aggregations
+ * of the searches without any text are computed without sending a query to elasticsearch.
+ * <p>
+ * Every country has one row of longs. A calendar year overlaps at most two of the decades of
+ * by_country, so each year has two cells, one per decade, holding the number of persons, the sum
+ * of their children and the number of persons whose number of children is known. The years,
+ * the decades and the countries of the aggregations are sums of cells, so the cost of a search
+ * does not depend on the number of persons. The last slots of a row count the persons without
+ * a date of birth and the ones born outside of 1940-2009: the counters give up when a search
+ * would need the latter.
+ * <p>
+ * Like {@link SuggestIndex}, the counters are loaded from the index and then follow the changes
+ * committed to the database. They may be ahead of the index until the outbox has been relayed.
+ * The changes committed while the index is being read are kept aside and applied once it has been read.
+ */
+@Component
+class FacetCounters {
+    private final Logger logger = LoggerFactory.getLogger(FacetCounters.class);
+
+    private static final int YEARS = MAX_YEAR - MIN_YEAR + 1;
+    // count, sum of the children, persons with children: for the 2 decades of every year
+    private static final int STATS = 3;
+    private static final int CELLS = YEARS * 2;
+    private static final int UNDATED = CELLS * STATS;
+    private static final int OUT_OF_RANGE = UNDATED + 1;
+    private static final int ROW = OUT_OF_RANGE + 1;
+
+    // Start of every year, and of the first decade it overlaps
+    private static final long[] YEAR_STARTS = new long[YEARS + 1];
+    private static final long[] FIRST_DECADES = new long[YEARS];
+
+    static {
+        for (int year = 0; year <= YEARS; year++) {
+            YEAR_STARTS[year] = PersonAggregations.millis(LocalDate.of(MIN_YEAR + year, 1, 1));
+        }
+        for (int year = 0; year < YEARS; year++) {
+            FIRST_DECADES[year] = PersonAggregations.decadeStart(YEAR_STARTS[year]);
+        }
+    }
+
+    private final SearchBackend searchBackend;
+
+    @Value("${app.export.page-size:1000}")
+    private int pageSize;
+
+    private Table table = new Table();
+    // Changes committed until the counters are loaded, removed and added facet of each. Null once loaded.
+    private List<Facet[]> pending = new ArrayList<>();
+    private boolean clearedWhileLoading;
+    private volatile boolean loaded;
+
+    FacetCounters(SearchBackend searchBackend) {
+        this.searchBackend = searchBackend;
+    }
+
+    /**
+     * What the counters need to know about a person. Taken before a person is modified,
+     * so its previous values can be removed.
+     */
+    static final class Facet {
+        private final String country;
+        private final LocalDate dateOfBirth;
+        private final Integer children;
+
+        private Facet(String country, LocalDate dateOfBirth, Integer children) {
+            this.country = country;
+            this.dateOfBirth = dateOfBirth;
+            this.children = children;
+        }
+    }
+
+    static Facet facet(Person person) {
+        return new Facet(person.getAddress() == null ? null : person.getAddress().getCountry(),
+                person.getDateOfBirth(), person.getChildren());
+    }
+
+    /**
+     * Load the persons already in the index. Until then, the aggregations are computed by elasticsearch.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        synchronized (this) {
+            if (pending == null) {
+                pending = new ArrayList<>();
+            }
+            clearedWhileLoading = false;
+        }
+        try {
+            long start = System.nanoTime();
+            // Read into new counters: the changes committed meanwhile must not be counted twice
+            Table loading = new Table();
+            long persons = searchBackend.scan(pageSize, 1, person -> loading.count(facet(person), 1));
+            synchronized (this) {
+                table = clearedWhileLoading ? new Table() : loading;
+                for (Facet[] change : pending) {
+                    table.update(change[0], change[1]);
+                }
+                pending = null;
+                loaded = true;
+                logger.info("Facet counters loaded from {} persons in {} ms: {} countries",
+                        persons, (System.nanoTime() - start) / 1_000_000, table.countries.size() - 1);
+            }
+        } catch (Exception e) {
+            synchronized (this) {
+                // The counters will not be used: stop keeping the changes
+                pending = null;
+            }
+            logger.warn("Can not load the facet counters from elasticsearch: {}", e.getMessage());
+            logger.debug("Full stack trace", e);
+        }
+    }
+
+    void add(Person person) {
+        update(null, facet(person));
+    }
+
+    /**
+     * @param removed values of the person before the change, null when it did not exist
+     * @param added   values of the person after the change, null when it has been deleted
+     */
+    synchronized void update(Facet removed, Facet added) {
+        if (pending != null) {
+            pending.add(new Facet[] { removed, added });
+        } else {
+            table.update(removed, added);
+        }
+    }
+
+    synchronized void clear() {
+        table = new Table();
+        if (pending != null) {
+            // The persons being read have been removed as well
+            pending.clear();
+            clearedWhileLoading = true;
+        }
+    }
+
+    /**
+     * Aggregations of the persons matching the filters of a search without any text.
+     * @param country  only the persons of this country when not null
+     * @param fromYear only the persons born during the 10 years starting with this one when not null
+     * @return null when the counters can not tell, because they are not loaded yet or because
+     *         some matching persons are born outside of the years they count
+     */
+    synchronized Map<String, Aggregate> aggregations(String country, Integer fromYear) {
+        if (!loaded) {
+            return null;
+        }
+        List<String> countries = table.countries;
+        long[] counters = table.counters;
+        int from = fromYear == null ? 0 : Math.max(fromYear - MIN_YEAR, 0);
+        int to = fromYear == null ? YEARS : Math.min(fromYear - MIN_YEAR + 10, YEARS);
+
+        Map<String, Long> countByCountry = new HashMap<>();
+        Map<String, Map<Long, long[]>> decadesByCountry = new HashMap<>();
+        Map<Long, Long> countByYear = new HashMap<>();
+        for (int r = 0; r < countries.size(); r++) {
+            if (country != null && !country.equals(countries.get(r))) {
+                continue;
+            }
+            int row = r * ROW;
+            if (counters[row + OUT_OF_RANGE] > 0) {
+                return null;
+            }
+            long persons = fromYear == null ? counters[row + UNDATED] : 0;
+            Map<Long, long[]> decades = new HashMap<>();
+            for (int year = from; year < to; year++) {
+                for (int half = 0; half < 2; half++) {
+                    int cell = row + (year * 2 + half) * STATS;
+                    if (counters[cell] == 0) {
+                        continue;
+                    }
+                    persons += counters[cell];
+                    countByYear.merge(YEAR_STARTS[year], counters[cell], Long::sum);
+                    long[] decade = decades.computeIfAbsent(FIRST_DECADES[year] + half * PersonAggregations.DECADE,
+                            d -> new long[STATS]);
+                    for (int stat = 0; stat < STATS; stat++) {
+                        decade[stat] += counters[cell + stat];
+                    }
+                }
+            }
+            if (r > 0) {
+                countByCountry.put(countries.get(r), persons);
+                decadesByCountry.put(countries.get(r), decades);
+            }
+        }
+        return PersonAggregations.aggregations(countByCountry,
+                c -> PersonAggregations.byDecade(decadesByCountry.get(c)), countByYear);
+    }
+
+    /**
+     * The counters of every country. Not thread safe.
+     */
+    private static final class Table {
+        // Row 0 holds the persons without a country: they only appear in by_year
+        private final Map<String, Integer> rows = new HashMap<>();
+        private final List<String> countries = new ArrayList<>();
+        private long[] counters = new long[ROW];
+
+        private Table() {
+            countries.add(null);
+        }
+
+        private void update(Facet removed, Facet added) {
+            if (removed != null) {
+                count(removed, -1);
+            }
+            if (added != null) {
+                count(added, 1);
+            }
+        }
+
+        private void count(Facet facet, int increment) {
+            int row = row(facet.country) * ROW;
+            if (facet.dateOfBirth == null) {
+                counters[row + UNDATED] += increment;
+                return;
+            }
+            int year = facet.dateOfBirth.getYear() - MIN_YEAR;
+            if (year < 0 || year >= YEARS) {
+                counters[row + OUT_OF_RANGE] += increment;
+                return;
+            }
+            long decade = PersonAggregations.decadeStart(PersonAggregations.millis(facet.dateOfBirth));
+            int cell = row + (year * 2 + (decade == FIRST_DECADES[year] ? 0 : 1)) * STATS;
+            counters[cell] += increment;
+            if (facet.children != null) {
+                counters[cell + 1] += increment * (long) facet.children;
+                counters[cell + 2] += increment;
+            }
+        }
+
+        private int row(String country) {
+            if (country == null) {
+                return 0;
+            }
+            return rows.computeIfAbsent(country, c -> {
+                countries.add(c);
+                counters = Arrays.copyOf(counters, countries.size() * ROW);
+                return countries.size() - 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.PersonGenerator;
+
+/**
+ * Staged producer/consumer pipeline used to load a large number of generated persons.
+ * Generator threads build batches of persons, writer threads persist them in the database
+ * and a single indexing thread sends them to elasticsearch. Stages are linked with bounded
+ * queues so a slow stage blocks the previous one instead of filling up the heap.
+ * <p>
+ * The time spent by every stage is recorded in the phases generate, db and index of the job.
+ * Interrupting the thread running the pipeline stops all the stages.
+ */
+class InitPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(InitPipeline.class);
+
+    // Marks the end of a queue. Compared by identity only.
+    private static final List<Person> END = new ArrayList<>(0);
+
+    private final int generators;
+    private final int writers;
+    private final int batchSize;
+    private final long seed;
+    private final Function<List<Person>, Iterable<Person>> dbStage;
+    private final Consumer<Iterable<Person>> indexStage;
+    private final Job job;
+
+    private final BlockingQueue<List<Person>> dbQueue;
+    private final BlockingQueue<Iterable<Person>> indexQueue;
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicInteger runningGenerators = new AtomicInteger();
+    private final AtomicInteger runningWriters = new AtomicInteger();
+
+    InitPipeline(int generators, int writers, int batchSize, int queueSize, long seed,
+                 Function<List<Person>, Iterable<Person>> dbStage,
+                 Consumer<Iterable<Person>> indexStage,
+                 Job job) {
+        this.generators = generators;
+        this.writers = writers;
+        this.batchSize = batchSize;
+        this.seed = seed;
+        this.dbStage = dbStage;
+        this.indexStage = indexStage;
+        this.job = job;
+        this.dbQueue = new ArrayBlockingQueue<>(queueSize);
+        this.indexQueue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Run the pipeline until all persons have been generated, saved and indexed.
+     * @param initial   persons which have already been built by the caller
+     * @param generate  number of persons to generate on top of the initial ones.
+     *                  They are numbered from 1 to generate. See {@link PersonGenerator#personGenerator(long, long)}.
+     */
+    void run(List<Person> initial, int generate) throws IOException {
+        logger.debug("Starting init pipeline with {} generators, {} writers and batches of {}",
+                generators, writers, batchSize);
+        remaining.set(generate);
+        runningGenerators.set(generators);
+        runningWriters.set(writers);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(generators + writers + 1,
+                r -> new Thread(r, "init-pipeline-" + threadNumber.incrementAndGet()));
+        ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+
+        try {
+            if (!initial.isEmpty()) {
+                dbQueue.put(initial);
+            }
+            for (int i = 0; i < generators; i++) {
+                completionService.submit(this::generate);
+            }
+            for (int i = 0; i < writers; i++) {
+                completionService.submit(this::write);
+            }
+            completionService.submit(this::index);
+
+            for (int i = 0; i < generators + writers + 1; i++) {
+                completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Init has been interrupted", e);
+        } catch (ExecutionException e) {
+            logger.warn("Init pipeline failed", e.getCause());
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Init pipeline failed", e.getCause());
+        } finally {
+            // Stop the other stages if one of them failed
+            executor.shutdownNow();
+        }
+    }
+
+    private Void generate() throws Exception {
+        try {
+            List<Person> batch = new ArrayList<>(batchSize);
+            long batchStart = System.nanoTime();
+            int index;
+            while ((index = remaining.getAndDecrement()) > 0) {
+                batch.add(PersonGenerator.personGenerator(seed, index));
+                if (batch.size() >= batchSize) {
+                    job.phase("generate").add(batch.size(), batchStart);
+                    dbQueue.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                    batchStart = System.nanoTime();
+                }
+            }
+            if (!batch.isEmpty()) {
+                job.phase("generate").add(batch.size(), batchStart);
+                dbQueue.put(batch);
+            }
+        } finally {
+            if (runningGenerators.decrementAndGet() == 0) {
+                for (int i = 0; i < writers; i++) {
+                    dbQueue.put(END);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Void write() throws Exception {
+        try {
+            List<Person> batch;
+            while ((batch = dbQueue.take()) != END) {
+                long start = System.nanoTime();
+                Iterable<Person> saved = dbStage.apply(batch);
+                job.phase("db").add(batch.size(), start);
+                indexQueue.put(saved);
+            }
+        } finally {
+            if (runningWriters.decrementAndGet() == 0) {
+                indexQueue.put(END);
+            }
+        }
+        return null;
+    }
+
+    private Void index() throws Exception {
+        Iterable<Person> batch;
+        while ((batch = indexQueue.take()) != END) {
+            long start = System.nanoTime();
+            indexStage.accept(batch);
+            long persons = Job.count(batch);
+            job.phase("index").add(persons, start);
+            job.done(persons);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.pilato.demo.legacysearch.webapp.InitResult;
+import fr.pilato.demo.legacysearch.webapp.JobResult;
+
+/**
+ * A load of persons running in the background, see {@link JobService}. Each job has its own progress:
+ * the time spent and the number of persons handled by each phase, and the number of persons done,
+ * the ones which went through the last phase.
+ */
+class Job {
+
+    enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    private final String id;
+    private final String type;
+    // In the order persons go through them
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final AtomicLong current = new AtomicLong();
+    private final RollingRate rate = new RollingRate();
+
+    private State state = State.QUEUED;
+    private String error;
+    private Object result;
+    private long start;
+    private long end;
+    private Future<?> future;
+    private Runnable cleanup;
+
+    /**
+     * @param cleanup run once the job is finished, whatever its state, even when it is cancelled before it started
+     */
+    Job(String id, String type, Runnable cleanup, String... phases) {
+        this.id = id;
+        this.type = type;
+        this.cleanup = cleanup;
+        for (String phase : phases) {
+            this.phases.put(phase, new Phase());
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the job has no such phase
+     */
+    Phase phase(String name) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            throw new IllegalArgumentException("Job " + type + " has no phase " + name);
+        }
+        return phase;
+    }
+
+    /**
+     * Count persons which went through all the phases
+     */
+    void done(long persons) {
+        current.addAndGet(persons);
+        rate.add(persons, System.nanoTime());
+    }
+
+    synchronized void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * @return false if the job has been cancelled before it started
+     */
+    synchronized boolean started() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        state = State.RUNNING;
+        start = System.nanoTime();
+        return true;
+    }
+
+    synchronized void finished(Object result) {
+        this.result = result;
+        end(State.DONE);
+    }
+
+    synchronized void failed(Exception e) {
+        if (state == State.CANCELLED) {
+            // The job stopped because it has been interrupted: this is not an error
+            end(State.CANCELLED);
+        } else {
+            error = e.getMessage();
+            end(State.FAILED);
+        }
+    }
+
+    /**
+     * Stop the job: it does not start when it is queued and its threads are interrupted when it is running.
+     */
+    synchronized void cancel() {
+        if (state == State.QUEUED) {
+            start = System.nanoTime();
+            end(State.CANCELLED);
+        } else if (state == State.RUNNING) {
+            // The job ends when its threads have noticed it
+            state = State.CANCELLED;
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    private void end(State state) {
+        this.state = state;
+        end = System.nanoTime();
+        if (cleanup != null) {
+            Runnable toRun = cleanup;
+            cleanup = null;
+            toRun.run();
+        }
+    }
+
+    synchronized boolean isFinished() {
+        return end != 0;
+    }
+
+    synchronized JobResult toResult() {
+        long took = took();
+        Map<String, JobResult.PhaseResult> phaseResults = new LinkedHashMap<>();
+        phases.forEach((name, phase) -> phaseResults.put(name, phase.toResult()));
+        return new JobResult(id, type, state.name().toLowerCase(Locale.ROOT), error, took, rate(took), current.get(),
+                phaseResults, result);
+    }
+
+    /**
+     * @return the progress of the job with the fields of an init
+     */
+    synchronized InitResult toInitResult() {
+        long took = took();
+        return new InitResult(took, rate(took), (int) current.get());
+    }
+
+    private long took() {
+        if (start == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((end != 0 ? end : System.nanoTime()) - start);
+    }
+
+    /**
+     * @return the persons per second over the last seconds while running, over the whole job once finished
+     */
+    private long rate(long took) {
+        if (end != 0) {
+            return took > 0 ? 1000L * current.get() / took : 0;
+        }
+        return start == 0 ? 0 : rate.perSecond(start, System.nanoTime());
+    }
+
+    static long count(Iterable<?> items) {
+        if (items instanceof Collection) {
+            return ((Collection<?>) items).size();
+        }
+        long count = 0;
+        for (Object ignored : items) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * What one phase did. When it runs in several threads, their times add up.
+     */
+    static class Phase {
+        private final AtomicLong persons = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        void add(long persons, long startNanos) {
+            this.persons.addAndGet(persons);
+            this.nanos.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        JobResult.PhaseResult toResult() {
+            return new JobResult.PhaseResult(persons.get(), TimeUnit.NANOSECONDS.toMillis(nanos.get()));
+        }
+    }
+
+    /**
+     * Persons done during each of the last seconds
+     */
+    private static class RollingRate {
+        private static final int SECONDS = 10;
+        private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        private final long[] seconds = new long[SECONDS];
+        private final long[] counts = new long[SECONDS];
+
+        synchronized void add(long persons, long now) {
+            long second = now / SECOND;
+            int slot = (int) Math.floorMod(second, (long) SECONDS);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                counts[slot] = 0;
+            }
+            counts[slot] += persons;
+        }
+
+        synchronized long perSecond(long start, long now) {
+            long second = now / SECOND;
+            long persons = 0;
+            for (int slot = 0; slot < SECONDS; slot++) {
+                if (seconds[slot] > second - SECONDS && seconds[slot] <= second) {
+                    persons += counts[slot];
+                }
+            }
+            // From the start of the oldest second of the window, or of the job when it is more recent
+            long window = now - Math.max(start, (second - SECONDS + 1) * SECOND);
+            return window > 0 ? persons * SECOND / window : 0;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import fr.pilato.demo.legacysearch.webapp.BadRequestException;
+import fr.pilato.demo.legacysearch.webapp.InitResult;
+import fr.pilato.demo.legacysearch.webapp.JobNotFoundException;
+import fr.pilato.demo.legacysearch.webapp.JobResult;
+
+/**
+ * Runs the inits and the imports in the background, so no HTTP request waits for them.
+ * At most app.jobs.threads jobs run at the same time and app.jobs.queue-size wait for their turn:
+ * more are refused. The last app.jobs.history jobs can be looked at once they are finished.
+ */
+@Service
+public class JobService implements AutoCloseable {
+    private final Logger logger = LoggerFactory.getLogger(JobService.class);
+
+    /**
+     * What a job does. It must stop when its thread is interrupted.
+     */
+    @FunctionalInterface
+    interface Work {
+        /**
+         * @return the result given by the status of the job once it is done
+         */
+        Object run(Job job) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final int history;
+    private final AtomicLong ids = new AtomicLong();
+    // By id, the oldest first
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    public JobService(@Value("${app.jobs.threads:1}") int threads,
+                      @Value("${app.jobs.queue-size:10}") int queueSize,
+                      @Value("${app.jobs.history:100}") int history) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(threads, 1), Math.max(threads, 1), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)), r -> {
+                    Thread thread = new Thread(r, "job-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.history = Math.max(history, 1);
+    }
+
+    /**
+     * @param phases what the job does to every person, in this order
+     * @throws BadRequestException if too many jobs are already waiting
+     */
+    JobResult submit(String type, List<String> phases, Work work) {
+        return submit(type, phases, work, null);
+    }
+
+    /**
+     * @param cleanup releases what the work needs once the job is finished, whatever its state, even when
+     *                it is cancelled before it started. Not run when the job is refused.
+     * @throws BadRequestException if too many jobs are already waiting
+     */
+    JobResult submit(String type, List<String> phases, Work work, Runnable cleanup) {
+        Job job = new Job(String.valueOf(ids.incrementAndGet()), type, cleanup, phases.toArray(new String[0]));
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            forgetFinishedJobs();
+        }
+        try {
+            job.setFuture(executor.submit(() -> run(job, work)));
+        } catch (RejectedExecutionException e) {
+            synchronized (jobs) {
+                jobs.remove(job.getId());
+            }
+            throw new BadRequestException("Too many jobs are waiting: try again later");
+        }
+        logger.debug("Job {} submitted: {}", job.getId(), type);
+        return job.toResult();
+    }
+
+    private void run(Job job, Work work) {
+        if (!job.started()) {
+            return;
+        }
+        try {
+            job.finished(work.run(job));
+            logger.info("Job {} ({}) done", job.getId(), job.getType());
+        } catch (Exception e) {
+            job.failed(e);
+            logger.warn("Job {} ({}) stopped: {}", job.getId(), job.getType(), e.getMessage());
+            logger.debug("Full stack trace", e);
+        }
+    }
+
+    private void forgetFinishedJobs() {
+        Iterator<Job> oldestFirst = jobs.values().iterator();
+        while (jobs.size() > history && oldestFirst.hasNext()) {
+            if (oldestFirst.next().isFinished()) {
+                oldestFirst.remove();
+            }
+        }
+    }
+
+    /**
+     * @return all the jobs we know, the oldest first
+     */
+    public List<JobResult> list() {
+        List<JobResult> results = new ArrayList<>();
+        synchronized (jobs) {
+            jobs.values().forEach(job -> results.add(job.toResult()));
+        }
+        return results;
+    }
+
+    /**
+     * @throws JobNotFoundException if there is no such job
+     */
+    public JobResult get(String id) {
+        return job(id).toResult();
+    }
+
+    /**
+     * Cancel a job. Persons it already saved are kept.
+     * @throws JobNotFoundException if there is no such job
+     */
+    public JobResult cancel(String id) {
+        Job job = job(id);
+        job.cancel();
+        logger.debug("Job {} cancelled", id);
+        return job.toResult();
+    }
+
+    /**
+     * @return the progress of the last job of this type, or nothing when there is none
+     */
+    public InitResult latest(String type) {
+        Job latest = null;
+        synchronized (jobs) {
+            for (Job job : jobs.values()) {
+                if (job.getType().equals(type)) {
+                    latest = job;
+                }
+            }
+        }
+        return latest == null ? new InitResult(0, 0, 0) : latest.toInitResult();
+    }
+
+    private Job job(String id) {
+        Job job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        if (job == null) {
+            throw new JobNotFoundException();
+        }
+        return job;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        // The queued jobs will never run: they must be cleaned up as well
+        List<Job> unfinished = new ArrayList<>();
+        synchronized (jobs) {
+            jobs.values().stream().filter(job -> !job.isFinished()).forEach(unfinished::add);
+        }
+        unfinished.forEach(Job::cancel);
+    }
+}
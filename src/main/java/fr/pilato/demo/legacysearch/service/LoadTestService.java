@@ -0,0 +1,255 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import fr.pilato.demo.legacysearch.dao.PersonRepository;
+import fr.pilato.demo.legacysearch.dao.SearchBackend;
+import fr.pilato.demo.legacysearch.helper.PersonGenerator;
+import fr.pilato.demo.legacysearch.webapp.BadRequestException;
+import fr.pilato.demo.legacysearch.webapp.LoadTestResult;
+
+/**
+ * Sends the same kind of queries a user would send, from several threads for a given duration,
+ * to elasticsearch (the query and the aggregations of {@link PersonService#search}, sent to the
+ * {@link SearchBackend} without the cache) and to the database (through
+ * {@link PersonRepository#findLikeGoogle}), and measures their latency.
+ * <p>
+ * The queries are built from the values persons are generated with: names, cities, countries
+ * and decades of birth. The database can not filter by date or country, so it runs the name only for those.
+ * <p>
+ * The elasticsearch-unrouted backend sends the same searches without their routing, so they ask all the
+ * shards: compare it with elasticsearch on filter queries to measure what the routing by country brings.
+ */
+@Service
+public class LoadTestService {
+    private final Logger logger = LoggerFactory.getLogger(LoadTestService.class);
+
+    static final String ELASTICSEARCH = "elasticsearch";
+    static final String ELASTICSEARCH_UNROUTED = "elasticsearch-unrouted";
+    static final String DATABASE = "database";
+
+    private static final List<String> KINDS = List.of("name", "city", "country", "date", "filter");
+    private static final int MAX_CONCURRENCY = 256;
+    private static final int MAX_DURATION = 300;
+    private static final int PAGE_SIZE = 10;
+
+    private final SearchBackend searchBackend;
+    private final PersonRepository personRepository;
+
+    public LoadTestService(SearchBackend searchBackend, PersonRepository personRepository) {
+        this.searchBackend = searchBackend;
+        this.personRepository = personRepository;
+    }
+
+    /**
+     * A query of the test
+     */
+    private static final class LoadQuery {
+        private final String text;
+        private final String decade;
+        private final String country;
+
+        private LoadQuery(String text, String decade) {
+            this(text, decade, null);
+        }
+
+        private LoadQuery(String text, String decade, String country) {
+            this.text = text;
+            this.decade = decade;
+            this.country = country;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Backend {
+        void run(LoadQuery query) throws Exception;
+    }
+
+    /**
+     * Run the test on each backend, one after the other.
+     * @param concurrency   number of threads sending queries
+     * @param duration      duration of the test of each backend, in seconds
+     * @param mix           weight of every kind of query, like name:4,city:2,country:2,date:2.
+     *                      filter searches for a name in one country, using the country filter.
+     * @param backends      comma separated list of backends: elasticsearch, elasticsearch-unrouted, database
+     */
+    public LoadTestResult run(int concurrency, int duration, String mix, String backends) {
+        if (concurrency < 1 || concurrency > MAX_CONCURRENCY) {
+            throw new BadRequestException("concurrency must be between 1 and " + MAX_CONCURRENCY);
+        }
+        if (duration < 1 || duration > MAX_DURATION) {
+            throw new BadRequestException("duration must be between 1 and " + MAX_DURATION + " seconds");
+        }
+        int[] weights = parseMix(mix);
+        long seed = ThreadLocalRandom.current().nextLong();
+
+        Map<String, LoadTestResult.Backend> results = new LinkedHashMap<>();
+        for (String name : backends.split(",")) {
+            String backend = name.trim();
+            if (ELASTICSEARCH.equals(backend) || ELASTICSEARCH_UNROUTED.equals(backend)) {
+                boolean routed = ELASTICSEARCH.equals(backend);
+                // Neither the cache nor the coalescing of identical searches: most queries would not reach elasticsearch
+                results.put(backend, run(backend, concurrency, duration, weights, seed, query -> {
+                    Query search = PersonService.searchQuery(query.text, query.country, query.decade);
+                    String routing = routed ? PersonService.searchRouting(query.country) : null;
+                    searchBackend.search(search, routing, 0, PAGE_SIZE, null, searchBackend.aggregations(search, routing));
+                }));
+            } else if (DATABASE.equals(backend)) {
+                results.put(backend, run(backend, concurrency, duration, weights, seed,
+                        query -> personRepository.findLikeGoogle(query.text, PageRequest.of(0, PAGE_SIZE))));
+            } else {
+                throw new BadRequestException("Unknown backend " + backend + ". Use " + ELASTICSEARCH + ", "
+                        + ELASTICSEARCH_UNROUTED + " or " + DATABASE);
+            }
+        }
+        return new LoadTestResult(concurrency, TimeUnit.SECONDS.toMillis(duration), results);
+    }
+
+    /**
+     * @return the cumulated weights of the kinds of queries, in the order of {@link #KINDS}
+     */
+    static int[] parseMix(String mix) {
+        int[] weights = new int[KINDS.size()];
+        for (String entry : mix.split(",")) {
+            String[] kindAndWeight = entry.trim().split(":");
+            int kind = KINDS.indexOf(kindAndWeight[0].trim());
+            if (kind < 0 || kindAndWeight.length != 2) {
+                throw new BadRequestException("Invalid mix entry [" + entry + "]. Expected kind:weight with kind in " + KINDS);
+            }
+            try {
+                weights[kind] = Integer.parseInt(kindAndWeight[1].trim());
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid weight in mix entry [" + entry + "]");
+            }
+            if (weights[kind] < 0) {
+                throw new BadRequestException("Invalid weight in mix entry [" + entry + "]");
+            }
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] == 0) {
+            throw new BadRequestException("At least one kind of query must have a weight");
+        }
+        return weights;
+    }
+
+    static LoadQuery nextQuery(SplittableRandom random, int[] weights) {
+        int pick = random.nextInt(weights[weights.length - 1]);
+        int kind = 0;
+        while (pick >= weights[kind]) {
+            kind++;
+        }
+        switch (KINDS.get(kind)) {
+            case "city":
+                return new LoadQuery(PersonGenerator.randomCity(random), null);
+            case "country":
+                return new LoadQuery(PersonGenerator.randomCountry(random), null);
+            case "date":
+                return new LoadQuery(PersonGenerator.randomName(random), String.valueOf(PersonGenerator.randomDecade(random)));
+            case "filter":
+                return new LoadQuery(PersonGenerator.randomName(random), null, PersonGenerator.randomCountry(random));
+            default:
+                return new LoadQuery(PersonGenerator.randomName(random), null);
+        }
+    }
+
+    private LoadTestResult.Backend run(String name, int concurrency, int duration, int[] weights, long seed, Backend backend) {
+        logger.info("Running load test on {} with {} threads for {} s", name, concurrency, duration);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                r -> new Thread(r, "load-test-" + threadNumber.incrementAndGet()));
+        AtomicLong errors = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(duration);
+
+        try {
+            List<Future<Histogram>> futures = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                // Every backend gets the same queries
+                SplittableRandom random = new SplittableRandom(seed + i);
+                futures.add(executor.submit(() -> {
+                    // Histograms are not thread safe: each thread has its own and we merge them at the end
+                    Histogram histogram = new Histogram(3);
+                    while (System.nanoTime() < deadline) {
+                        LoadQuery query = nextQuery(random, weights);
+                        long queryStart = System.nanoTime();
+                        try {
+                            backend.run(query);
+                            histogram.recordValue(System.nanoTime() - queryStart);
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                            logger.debug("Query [{}] failed on {}", query.text, name, e);
+                        }
+                    }
+                    return histogram;
+                }));
+            }
+
+            Histogram latencies = new Histogram(3);
+            for (Future<Histogram> future : futures) {
+                latencies.add(future.get());
+            }
+            long took = System.nanoTime() - start;
+
+            LoadTestResult.Backend result = new LoadTestResult.Backend(latencies.getTotalCount(), errors.get(),
+                    latencies.getTotalCount() * 1_000_000_000.0 / took,
+                    millis(latencies.getValueAtPercentile(50)),
+                    millis(latencies.getValueAtPercentile(99)),
+                    millis(latencies.getValueAtPercentile(99.9)),
+                    millis(latencies.getMaxValue()));
+            logger.info("Load test on {}: {} requests, {} errors, {} req/s, p50 {} ms, p99 {} ms, p999 {} ms", name,
+                    result.getRequests(), result.getErrors(), (long) result.getThroughput(),
+                    result.getP50(), result.getP99(), result.getP999());
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Load test has been interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Load test failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
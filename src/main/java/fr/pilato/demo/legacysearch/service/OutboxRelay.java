@@ -0,0 +1,338 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import co.elastic.clients.elasticsearch._types.Refresh;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fr.pilato.demo.legacysearch.dao.OutboxRepository;
+import fr.pilato.demo.legacysearch.dao.PersonRepository;
+import fr.pilato.demo.legacysearch.dao.SearchBackend;
+import fr.pilato.demo.legacysearch.domain.OutboxEntry;
+import fr.pilato.demo.legacysearch.domain.Person;
+
+/**
+ * Sends the persons recorded in the outbox to elasticsearch.
+ * The database is the source of truth: for every person id found in the outbox, we index
+ * the current version of the person or we delete the document if the person does not exist
+ * anymore. When all the entries of a person are partial updates, we only send the modified
+ * fields. Entries are removed from the outbox only once elasticsearch accepted them, so
+ * pending entries are replayed after a failure or a restart.
+ * <p>
+ * An entry elasticsearch refused app.outbox.max-attempts times, like a document which does not
+ * match the mapping, is not sent anymore: it stays in the outbox as a dead letter, so the next
+ * entries are not stuck behind it. The outbox.entries gauge counts the pending and dead entries.
+ * <p>
+ * A write which must be searchable before answering watches its entries: the relay is woken up and
+ * sends the batch holding them with the refresh the write asked for. Concurrent writes share batches.
+ */
+@Service
+public class OutboxRelay implements AutoCloseable {
+    private final Logger logger = LoggerFactory.getLogger(OutboxRelay.class);
+
+    @Value("${app.outbox.batch-size:5000}")
+    private int batchSize;
+
+    @Value("${app.outbox.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${app.outbox.wait-timeout:30s}")
+    private Duration waitTimeout;
+
+    private final OutboxRepository outboxRepository;
+    private final PersonRepository personRepository;
+    private final SearchBackend searchBackend;
+    private final CacheManager cacheManager;
+    private final ObjectMapper objectMapper;
+
+    // Writes waiting for their entries to be sent, by entry id
+    private final Map<Long, Watch> watches = new ConcurrentHashMap<>();
+    // Relays the outbox when a write waits for it, instead of waiting for the next scheduled run
+    private final ExecutorService wakeUps = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "outbox-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+    /**
+     * Entries some write is waiting for. Complete once all of them have been sent.
+     */
+    private static final class Watch {
+        private final Refresh refresh;
+        private final AtomicInteger remaining;
+        private final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        private Watch(Refresh refresh, int entries) {
+            this.refresh = refresh;
+            this.remaining = new AtomicInteger(entries);
+        }
+    }
+
+    public OutboxRelay(OutboxRepository outboxRepository,
+                       PersonRepository personRepository,
+                       SearchBackend searchBackend,
+                       CacheManager cacheManager,
+                       ObjectMapper objectMapper,
+                       MeterRegistry meterRegistry) {
+        this.outboxRepository = outboxRepository;
+        this.personRepository = personRepository;
+        this.searchBackend = searchBackend;
+        this.cacheManager = cacheManager;
+        this.objectMapper = objectMapper;
+        Gauge.builder("outbox.entries", this, relay -> relay.outboxRepository.countByAttemptsLessThan(relay.maxAttempts))
+                .description("Entries of the outbox, waiting to be sent to elasticsearch or given up")
+                .tag("state", "pending")
+                .register(meterRegistry);
+        Gauge.builder("outbox.entries", this, relay -> relay.outboxRepository.countByAttemptsGreaterThanEqual(relay.maxAttempts))
+                .description("Entries of the outbox, waiting to be sent to elasticsearch or given up")
+                .tag("state", "dead")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Send the whole outbox to elasticsearch.
+     */
+    @Scheduled(fixedDelayString = "${app.outbox.delay:1000}")
+    public void relay() {
+        try {
+            // Keep draining while we are getting full batches
+            while (drain() >= batchSize) {
+                logger.trace("More entries are waiting in the outbox");
+            }
+        } catch (Exception e) {
+            logger.warn("Can not send the outbox to elasticsearch. Will retry later.", e);
+        }
+    }
+
+    /**
+     * Wait for these entries to be sent with the given refresh. Must be called before the entries
+     * are committed, so they can not have been sent already. See {@link #await(CompletableFuture)}.
+     * @return completed once all the entries have been sent, or refused, by elasticsearch
+     */
+    CompletableFuture<Void> watch(Collection<Long> entryIds, Refresh refresh) {
+        Watch watch = new Watch(refresh, entryIds.size());
+        entryIds.forEach(id -> watches.put(id, watch));
+        return watch.sent;
+    }
+
+    /**
+     * Stop waiting for entries which have not been committed.
+     */
+    void unwatch(Collection<Long> entryIds) {
+        entryIds.forEach(watches::remove);
+    }
+
+    /**
+     * Relay the outbox now and wait, at most app.outbox.wait-timeout, for entries being watched.
+     * The calling thread does not send anything itself: it never waits for the other writes.
+     */
+    void await(CompletableFuture<Void> sent) {
+        wakeUp();
+        try {
+            sent.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("The outbox has not been relayed after {}: answering without waiting anymore", waitTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Can not wait for the outbox to be relayed: {}", e.getCause().getMessage());
+        }
+    }
+
+    private void wakeUp() {
+        // The writes waiting at the same time share one run
+        if (wakeUpPending.compareAndSet(false, true)) {
+            try {
+                wakeUps.execute(() -> {
+                    // Entries committed from now on need another run
+                    wakeUpPending.set(false);
+                    relay();
+                });
+            } catch (RejectedExecutionException e) {
+                wakeUpPending.set(false);
+                logger.debug("Shutting down: the outbox will be relayed at the next start");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        wakeUps.shutdownNow();
+    }
+
+    /**
+     * Send one batch of outbox entries to elasticsearch. Batches are sent one at a time: a batch
+     * reads the persons after the previous one has been indexed, so an older version of a person
+     * can not overwrite a newer one.
+     * @return the number of entries which have been removed from the outbox
+     */
+    synchronized int drain() throws IOException {
+        List<OutboxEntry> entries = outboxRepository.findByAttemptsLessThanOrderByIdAsc(maxAttempts, PageRequest.of(0, batchSize));
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        // The strongest refresh asked by the writes waiting for the entries of the batch. Refresh.True
+        // only for the immediate consistency: wait_for waits for the periodic refresh of the index.
+        Refresh refresh = null;
+        for (OutboxEntry entry : entries) {
+            Watch watch = watches.get(entry.getId());
+            if (watch != null && (refresh == null || watch.refresh == Refresh.True)) {
+                refresh = watch.refresh;
+            }
+        }
+
+        // Coalesce the updates of the same person. A full entry wins over partial ones.
+        Set<Integer> ids = new LinkedHashSet<>();
+        Set<Integer> fullIds = new HashSet<>();
+        Map<Integer, Map<String, Object>> partials = new HashMap<>();
+        Map<Integer, Set<String>> previousRoutings = new HashMap<>();
+        for (OutboxEntry entry : entries) {
+            ids.add(entry.getPersonId());
+            if (entry.getPreviousRouting() != null) {
+                previousRoutings.computeIfAbsent(entry.getPersonId(), id -> new LinkedHashSet<>())
+                        .add(entry.getPreviousRouting());
+            }
+            if (entry.getPartialDocument() == null) {
+                fullIds.add(entry.getPersonId());
+            } else {
+                Map<String, Object> partial = objectMapper.readValue(entry.getPartialDocument(),
+                        new TypeReference<Map<String, Object>>() { });
+                deepMerge(partials.computeIfAbsent(entry.getPersonId(), id -> new LinkedHashMap<>()), partial);
+            }
+        }
+        partials.keySet().removeAll(fullIds);
+
+        List<Person> persons = new ArrayList<>();
+        Map<Person, Map<String, Object>> updates = new LinkedHashMap<>();
+        Map<Integer, Set<String>> deletes = new LinkedHashMap<>();
+        Set<Integer> deletedIds = new LinkedHashSet<>(ids);
+        for (Person person : personRepository.findAllById(ids)) {
+            if (partials.containsKey(person.getId())) {
+                updates.put(person, partials.get(person.getId()));
+            } else {
+                persons.add(person);
+            }
+            // The person moved to another country: remove the document from its previous shard
+            Set<String> moved = previousRoutings.get(person.getId());
+            if (moved != null) {
+                moved.remove(SearchBackend.routing(person));
+                if (!moved.isEmpty()) {
+                    deletes.put(person.getId(), moved);
+                }
+            }
+            deletedIds.remove(person.getId());
+        }
+        for (Integer id : deletedIds) {
+            // Without any known routing, the document is routed by id
+            deletes.put(id, previousRoutings.getOrDefault(id, Collections.singleton(null)));
+        }
+
+        Set<String> failures = searchBackend.bulk(persons, updates, deletes, refresh);
+
+        List<Long> done = new ArrayList<>(entries.size());
+        List<Long> refused = new ArrayList<>();
+        int dead = 0;
+        for (OutboxEntry entry : entries) {
+            if (!failures.contains(String.valueOf(entry.getPersonId()))) {
+                done.add(entry.getId());
+            } else {
+                refused.add(entry.getId());
+                if (entry.getAttempts() + 1 >= maxAttempts) {
+                    dead++;
+                }
+            }
+        }
+        if (!done.isEmpty()) {
+            outboxRepository.deleteByIds(done);
+        }
+        if (!refused.isEmpty()) {
+            outboxRepository.incrementAttempts(refused);
+        }
+        if (dead > 0) {
+            logger.warn("Elasticsearch refused {} outbox entries {} times: they will not be sent anymore", dead, maxAttempts);
+        }
+        for (OutboxEntry entry : entries) {
+            Watch watch = watches.remove(entry.getId());
+            if (watch != null && watch.remaining.decrementAndGet() == 0) {
+                watch.sent.complete(null);
+            }
+        }
+
+        // Searches which ran before elasticsearch got the changes have cached stale results
+        for (String name : new String[] { "search", "aggregations" }) {
+            Cache cache = cacheManager.getCache(name);
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+
+        logger.debug("Sent {} persons, {} partial updates and {} deletions to elasticsearch from {} outbox entries",
+                persons.size(), updates.size(), deletedIds.size(), entries.size());
+        return done.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void deepMerge(Map<String, Object> target, Map<String, Object> source) {
+        for (Map.Entry<String, Object> field : source.entrySet()) {
+            Object existing = target.get(field.getKey());
+            if (existing instanceof Map && field.getValue() instanceof Map) {
+                deepMerge((Map<String, Object>) existing, (Map<String, Object>) field.getValue());
+            } else {
+                target.put(field.getKey(), field.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import jakarta.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+import fr.pilato.demo.legacysearch.domain.OutboxEntry;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.Strings;
+import fr.pilato.demo.legacysearch.webapp.BadRequestException;
+import fr.pilato.demo.legacysearch.webapp.ImportResult;
+import fr.pilato.demo.legacysearch.webapp.JobResult;
+
+/**
+ * Import persons from a stream, record by record, so memory usage does not depend on the size of the stream.
+ * Every app.batch.size records, the persons are inserted in the database with their outbox entries, in the
+ * same transaction: the {@link OutboxRelay} sends them to the search backend like any other write, so a
+ * person saved in the database is indexed even after a crash. Records which can not be read or saved are
+ * reported with their line and skipped.
+ * <p>
+ * The stream is first copied to a temporary file, then imported in the background by a job with the
+ * phases read and db. See {@link JobService}.
+ * <p>
+ * Persons are always created: the ids of the records are ignored.
+ */
+@Service
+public class PersonImporter {
+    private final Logger logger = LoggerFactory.getLogger(PersonImporter.class);
+
+    /**
+     * Formats of the stream
+     */
+    public enum Format {
+        /**
+         * One JSON person per line, like the export writes them
+         */
+        NDJSON,
+        /**
+         * A header line naming the fields, like name, dateOfBirth or address.city, then one person per line
+         */
+        CSV;
+
+        /**
+         * @throws BadRequestException if the content type is not supported
+         */
+        public static Format fromContentType(String contentType) {
+            String type = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+            if (type.startsWith("application/x-ndjson")) {
+                return NDJSON;
+            }
+            if (type.startsWith("text/csv")) {
+                return CSV;
+            }
+            throw new BadRequestException("Content type " + contentType + " is not supported: use application/x-ndjson or text/csv");
+        }
+    }
+
+    @Value("${app.batch.size:100}")
+    private int batchSize;
+
+    @Value("${app.import.max-errors:100}")
+    private int maxErrors;
+
+    @Value("${app.import.max-size:1GB}")
+    private DataSize maxSize;
+
+    private final SuggestIndex suggestIndex;
+    private final FacetCounters facetCounters;
+    private final ObjectReader personReader;
+    private final ObjectMapper objectMapper;
+    private final ObjectReader csvReader;
+
+    private final JobService jobService;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+
+    public PersonImporter(SuggestIndex suggestIndex, FacetCounters facetCounters, ObjectMapper objectMapper,
+                          JobService jobService, EntityManager entityManager, PlatformTransactionManager transactionManager) {
+        this.suggestIndex = suggestIndex;
+        this.facetCounters = facetCounters;
+        this.objectMapper = objectMapper;
+        this.personReader = objectMapper.readerFor(Person.class);
+        this.csvReader = new CsvMapper().readerFor(Map.class).with(CsvSchema.emptySchema().withHeader());
+        this.jobService = jobService;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Copy the stream to a temporary file and import it in the background. Returns once the stream has been read.
+     * @throws BadRequestException if the stream is larger than app.import.max-size
+     */
+    public JobResult startImport(InputStream in, Format format) throws IOException {
+        Path file = Files.createTempFile("person-import-", "." + format.name().toLowerCase(Locale.ROOT));
+        try {
+            copy(in, file);
+            // The file is deleted whatever happens to the job, even when it is cancelled before it started
+            return jobService.submit("import", List.of("read", "db"), job -> {
+                try (InputStream fileIn = Files.newInputStream(file)) {
+                    return importPersons(fileIn, format, job);
+                }
+            }, () -> delete(file));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private void copy(InputStream in, Path file) throws IOException {
+        byte[] buffer = new byte[8192];
+        long copied = 0;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                copied += read;
+                if (copied > maxSize.toBytes()) {
+                    throw new BadRequestException("The body is larger than " + maxSize + ": split it in several imports");
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Can not delete the import file {}: {}", file, e.getMessage());
+        }
+    }
+
+    private ImportResult importPersons(InputStream in, Format format, Job job) throws IOException {
+        long start = System.nanoTime();
+        logger.debug("Importing persons from {}", format);
+
+        Import anImport = new Import(Math.max(batchSize, 1), job);
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        if (format == Format.CSV) {
+            readCsv(reader, anImport);
+        } else {
+            readNdjson(reader, anImport);
+        }
+        anImport.flush();
+
+        long took = Math.max((System.nanoTime() - start) / 1_000_000, 1);
+        logger.debug("Imported {} persons, {} failed. Took: {} ms", anImport.imported, anImport.failed, took);
+        return new ImportResult(took, 1000L * anImport.imported / took, anImport.imported, anImport.failed, anImport.errors);
+    }
+
+    private void readNdjson(Reader reader, Import anImport) throws IOException {
+        // Every line is parsed on its own, so a broken line does not prevent reading the next ones.
+        // The parser reads the line as a stream: a long line is never held in memory as a whole.
+        LineReader lines = new LineReader(reader);
+        long line = 0;
+        while (lines.nextLine()) {
+            line++;
+            try (JsonParser parser = objectMapper.getFactory().createParser(lines)) {
+                if (parser.nextToken() == null) {
+                    // Blank line
+                    continue;
+                }
+                Person person = personReader.readValue(parser);
+                if (person == null) {
+                    anImport.error(line, "Not a person");
+                } else if (parser.nextToken() != null) {
+                    anImport.error(line, "Only one person is expected per line");
+                } else {
+                    anImport.add(line, person);
+                }
+            } catch (JsonProcessingException e) {
+                anImport.error(line, e.getOriginalMessage());
+            }
+        }
+    }
+
+    /**
+     * Gives the characters of the current line only, then the end of the stream. The parser
+     * can not go past the line, whatever it holds.
+     */
+    private static final class LineReader extends Reader {
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+        private boolean endOfLine = true;
+        private boolean endOfStream;
+
+        private LineReader(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Skip what is left of the current line.
+         * @return false when there is no more line
+         */
+        private boolean nextLine() throws IOException {
+            while (!endOfLine) {
+                if (position == limit && !fill()) {
+                    break;
+                }
+                endOfLine = buffer[position++] == '\n';
+            }
+            if (position == limit && !fill()) {
+                return false;
+            }
+            endOfLine = false;
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            if (endOfStream) {
+                return false;
+            }
+            int read = in.read(buffer, 0, buffer.length);
+            if (read < 0) {
+                endOfStream = true;
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            if (endOfLine || (position == limit && !fill())) {
+                endOfLine = true;
+                return -1;
+            }
+            int count = 0;
+            while (count < length && position < limit) {
+                char c = buffer[position++];
+                if (c == '\n') {
+                    endOfLine = true;
+                    break;
+                }
+                chars[offset + count++] = c;
+            }
+            return count == 0 && endOfLine ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+            // The parser of a line closes its reader: the next lines must still be readable
+        }
+    }
+
+    private void readCsv(Reader reader, Import anImport) throws IOException {
+        // The header is the line 1
+        long line = 1;
+        try (MappingIterator<Map<String, String>> records = csvReader.readValues(reader)) {
+            while (records.hasNextValue()) {
+                line++;
+                try {
+                    anImport.add(line, objectMapper.treeToValue(toTree(records.nextValue()), Person.class));
+                } catch (JsonProcessingException e) {
+                    anImport.error(line, e.getOriginalMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the JSON document of the record: address.city becomes the city field of the address object
+     */
+    private ObjectNode toTree(Map<String, String> record) {
+        ObjectNode document = objectMapper.createObjectNode();
+        record.forEach((column, value) -> {
+            if (Strings.isEmpty(value)) {
+                return;
+            }
+            ObjectNode node = document;
+            String[] path = column.trim().split("\\.");
+            for (int i = 0; i < path.length - 1; i++) {
+                node = node.has(path[i]) && node.get(path[i]).isObject() ? (ObjectNode) node.get(path[i]) : node.putObject(path[i]);
+            }
+            node.put(path[path.length - 1], value);
+        });
+        return document;
+    }
+
+    /**
+     * Persons are always created. The ids of a failed insert must be forgotten as well before trying again.
+     */
+    private static void resetIds(Person person) {
+        person.setId(null);
+        if (person.getAddress() != null) {
+            person.getAddress().setId(null);
+        }
+        if (person.getMarketing() != null) {
+            person.getMarketing().setId(null);
+        }
+    }
+
+    /**
+     * One import: the batch being filled and what happened so far
+     */
+    private class Import {
+        private final List<Person> batch;
+        private final long[] lines;
+        private final Job job;
+        private final List<ImportResult.LineError> errors = new ArrayList<>();
+        private int imported;
+        private int failed;
+        private long batchStart = System.nanoTime();
+
+        private Import(int batchSize, Job job) {
+            batch = new ArrayList<>(batchSize);
+            lines = new long[batchSize];
+            this.job = job;
+        }
+
+        private void add(long line, Person person) throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Import has been cancelled");
+            }
+            resetIds(person);
+            lines[batch.size()] = line;
+            batch.add(person);
+            if (batch.size() == lines.length) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            job.phase("read").add(batch.size(), batchStart);
+            long start = System.nanoTime();
+            List<Person> saved = new ArrayList<>(batch.size());
+            try {
+                saved.addAll(save(batch));
+            } catch (RuntimeException e) {
+                // The whole batch has been rolled back: save the persons one by one to find the ones which fail
+                logger.debug("Can not save {} persons at once, saving them one by one: {}", batch.size(), e.getMessage());
+                for (int i = 0; i < batch.size(); i++) {
+                    Person person = batch.get(i);
+                    resetIds(person);
+                    try {
+                        saved.addAll(save(List.of(person)));
+                    } catch (RuntimeException personError) {
+                        error(lines[i], "Can not save the person: " + personError.getMessage());
+                    }
+                }
+            }
+
+            if (!saved.isEmpty()) {
+                saved.forEach(suggestIndex::add);
+                saved.forEach(facetCounters::add);
+                job.phase("db").add(saved.size(), start);
+                imported += saved.size();
+                job.done(saved.size());
+            }
+            batch.clear();
+            batchStart = System.nanoTime();
+        }
+
+        /**
+         * Insert the persons and their outbox entries in one transaction. The inserts are sent by JDBC batches,
+         * even without the fast-ingest profile, and grouped by table: the cascades would otherwise alternate
+         * addresses, marketing and persons, and each change of table ends a batch.
+         */
+        private List<Person> save(List<Person> persons) {
+            return transactionTemplate.execute(status -> {
+                entityManager.unwrap(Session.class).setJdbcBatchSize(persons.size());
+                for (Person person : persons) {
+                    if (person.getAddress() != null) {
+                        entityManager.persist(person.getAddress());
+                    }
+                }
+                for (Person person : persons) {
+                    if (person.getMarketing() != null) {
+                        entityManager.persist(person.getMarketing());
+                    }
+                }
+                persons.forEach(entityManager::persist);
+                // The ids come from a sequence: they are known once the persons are persisted
+                for (Person person : persons) {
+                    entityManager.persist(new OutboxEntry(person.getId()));
+                }
+                entityManager.flush();
+                // Nothing will be read back: keep the persistence context small
+                entityManager.clear();
+                return persons;
+            });
+        }
+
+        private void error(long line, String message) {
+            failed++;
+            if (errors.size() < maxErrors) {
+                errors.add(new ImportResult.LineError(line, message));
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import fr.pilato.demo.legacysearch.domain.Address;
+import fr.pilato.demo.legacysearch.domain.GeoPoint;
+import fr.pilato.demo.legacysearch.domain.Marketing;
+import fr.pilato.demo.legacysearch.domain.Person;
+
+/**
+ * Copies the fields of a person coming from the API into a person loaded from the database.
+ * Every field is copied explicitly: no reflection is involved. Ids are never copied, so the
+ * target keeps the ids of the person, of its address and of its marketing data.
+ */
+final class PersonMerger {
+
+    private PersonMerger() {
+    }
+
+    /**
+     * Replace all the fields of the target with the ones of the source, null values included.
+     */
+    static void replace(Person source, Person target) {
+        target.setName(source.getName());
+        target.setDateOfBirth(source.getDateOfBirth());
+        target.setGender(source.getGender());
+        target.setChildren(source.getChildren());
+
+        if (source.getAddress() == null) {
+            target.setAddress(null);
+        } else {
+            if (target.getAddress() == null) {
+                target.setAddress(new Address());
+            }
+            Address address = target.getAddress();
+            address.setCountry(source.getAddress().getCountry());
+            address.setZipcode(source.getAddress().getZipcode());
+            address.setCity(source.getAddress().getCity());
+            address.setCountrycode(source.getAddress().getCountrycode());
+            address.setLocation(source.getAddress().getLocation());
+        }
+
+        if (source.getMarketing() == null) {
+            target.setMarketing(null);
+        } else {
+            if (target.getMarketing() == null) {
+                target.setMarketing(new Marketing());
+            }
+            Marketing marketing = target.getMarketing();
+            marketing.setCars(source.getMarketing().getCars());
+            marketing.setShoes(source.getMarketing().getShoes());
+            marketing.setToys(source.getMarketing().getToys());
+            marketing.setFashion(source.getMarketing().getFashion());
+            marketing.setMusic(source.getMarketing().getMusic());
+            marketing.setGarden(source.getMarketing().getGarden());
+            marketing.setElectronic(source.getMarketing().getElectronic());
+            marketing.setHifi(source.getMarketing().getHifi());
+            marketing.setFood(source.getMarketing().getFood());
+        }
+    }
+
+    /**
+     * Copy the non null fields of the source into the target.
+     * @return the fields which have been modified, as a partial JSON document. Empty if nothing changed.
+     */
+    static Map<String, Object> merge(Person source, Person target) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        merge("name", source.getName(), target::getName, target::setName, changes);
+        merge("dateOfBirth", source.getDateOfBirth(), target::getDateOfBirth, target::setDateOfBirth, changes);
+        merge("gender", source.getGender(), target::getGender, target::setGender, changes);
+        merge("children", source.getChildren(), target::getChildren, target::setChildren, changes);
+
+        if (source.getAddress() != null) {
+            if (target.getAddress() == null) {
+                target.setAddress(new Address());
+            }
+            Map<String, Object> addressChanges = merge(source.getAddress(), target.getAddress());
+            if (!addressChanges.isEmpty()) {
+                changes.put("address", addressChanges);
+            }
+        }
+
+        if (source.getMarketing() != null) {
+            if (target.getMarketing() == null) {
+                target.setMarketing(new Marketing());
+            }
+            Map<String, Object> marketingChanges = merge(source.getMarketing(), target.getMarketing());
+            if (!marketingChanges.isEmpty()) {
+                changes.put("marketing", marketingChanges);
+            }
+        }
+
+        return changes;
+    }
+
+    private static Map<String, Object> merge(Address source, Address target) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        merge("country", source.getCountry(), target::getCountry, target::setCountry, changes);
+        merge("zipcode", source.getZipcode(), target::getZipcode, target::setZipcode, changes);
+        merge("city", source.getCity(), target::getCity, target::setCity, changes);
+        merge("countrycode", source.getCountrycode(), target::getCountrycode, target::setCountrycode, changes);
+
+        GeoPoint location = source.getLocation();
+        if (location != null && (target.getLocation() == null
+                || location.getLat() != target.getLocation().getLat()
+                || location.getLon() != target.getLocation().getLon())) {
+            target.setLocation(location);
+            changes.put("location", location);
+        }
+        return changes;
+    }
+
+    private static Map<String, Object> merge(Marketing source, Marketing target) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        merge("cars", source.getCars(), target::getCars, target::setCars, changes);
+        merge("shoes", source.getShoes(), target::getShoes, target::setShoes, changes);
+        merge("toys", source.getToys(), target::getToys, target::setToys, changes);
+        merge("fashion", source.getFashion(), target::getFashion, target::setFashion, changes);
+        merge("music", source.getMusic(), target::getMusic, target::setMusic, changes);
+        merge("garden", source.getGarden(), target::getGarden, target::setGarden, changes);
+        merge("electronic", source.getElectronic(), target::getElectronic, target::setElectronic, changes);
+        merge("hifi", source.getHifi(), target::getHifi, target::setHifi, changes);
+        merge("food", source.getFood(), target::getFood, target::setFood, changes);
+        return changes;
+    }
+
+    private static <T> void merge(String field, T value, Supplier<T> getter, Consumer<T> setter, Map<String, Object> changes) {
+        if (value != null && !Objects.equals(value, getter.get())) {
+            setter.accept(value);
+            changes.put(field, value);
+        }
+    }
+}
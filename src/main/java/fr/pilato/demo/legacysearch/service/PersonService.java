@@ -19,29 +19,57 @@
 package fr.pilato.demo.legacysearch.service;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import com.github.dozermapper.core.Mapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.json.JsonData;
-import fr.pilato.demo.legacysearch.dao.ElasticsearchDao;
+import fr.pilato.demo.legacysearch.dao.OutboxRepository;
 import fr.pilato.demo.legacysearch.dao.PersonRepository;
+import fr.pilato.demo.legacysearch.dao.SearchBackend;
 import fr.pilato.demo.legacysearch.domain.GeoPoint;
+import fr.pilato.demo.legacysearch.domain.OutboxEntry;
 import fr.pilato.demo.legacysearch.domain.Person;
 import fr.pilato.demo.legacysearch.helper.PersonGenerator;
 import fr.pilato.demo.legacysearch.helper.Strings;
+import fr.pilato.demo.legacysearch.webapp.BadRequestException;
 import fr.pilato.demo.legacysearch.webapp.InitResult;
+import fr.pilato.demo.legacysearch.webapp.JobResult;
 import fr.pilato.demo.legacysearch.webapp.PersonNotFoundException;
+import fr.pilato.demo.legacysearch.webapp.Suggestion;
+
+import static fr.pilato.demo.legacysearch.service.SearchKeyGenerator.text;
 
 @Service
 public class PersonService {
@@ -50,16 +78,67 @@ public class PersonService {
     @Value("${app.batch.size:100}")
     private int batchSize;
 
+    // When not set, we use one generator per available core
+    @Value("${app.init.generators:0}")
+    private int generators;
+
+    @Value("${app.init.writers:4}")
+    private int writers;
+
+    // Number of batches which can wait between two stages of the init pipeline
+    @Value("${app.init.queue-size:10}")
+    private int queueSize;
+
+    // Generate the same persons at every init. When not set, we use a random seed.
+    @Value("${app.init.seed:#{null}}")
+    private Long seed;
+
+    @Value("${app.export.page-size:1000}")
+    private int exportPageSize;
+
+    @Value("${app.suggest.max-size:100}")
+    private int suggestMaxSize;
+
+    // Compute the aggregations of the searches without text from memory, see FacetCounters
+    @Value("${app.facets.in-memory:true}")
+    private boolean inMemoryFacets;
+
     private final PersonRepository personRepository;
-    private final Mapper dozerBeanMapper;
-    private final ElasticsearchDao elasticsearchDao;
+    private final OutboxRepository outboxRepository;
+    private final OutboxRelay outboxRelay;
+    private final SearchBackend searchBackend;
+    private final CacheManager cacheManager;
+    private final ObjectMapper objectMapper;
+    private final SuggestIndex suggestIndex;
+    private final FacetCounters facetCounters;
+    private final JobService jobService;
+    // Identical searches running at the same time share one call to the search backend
+    private final SingleFlight<String> searches;
+    private final TransactionTemplate transactionTemplate;
 
     public PersonService(PersonRepository personRepository,
-                         ElasticsearchDao elasticsearchDao,
-                         Mapper dozerBeanMapper) {
+                         OutboxRepository outboxRepository,
+                         OutboxRelay outboxRelay,
+                         SearchBackend searchBackend,
+                         CacheManager cacheManager,
+                         ObjectMapper objectMapper,
+                         SuggestIndex suggestIndex,
+                         FacetCounters facetCounters,
+                         JobService jobService,
+                         MeterRegistry meterRegistry,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${app.search.coalesce-max-wait:30s}") Duration coalesceMaxWait) {
         this.personRepository = personRepository;
-        this.dozerBeanMapper = dozerBeanMapper;
-        this.elasticsearchDao = elasticsearchDao;
+        this.outboxRepository = outboxRepository;
+        this.outboxRelay = outboxRelay;
+        this.searchBackend = searchBackend;
+        this.cacheManager = cacheManager;
+        this.objectMapper = objectMapper;
+        this.suggestIndex = suggestIndex;
+        this.facetCounters = facetCounters;
+        this.jobService = jobService;
+        this.searches = new SingleFlight<>(meterRegistry, "search", coalesceMaxWait);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     public Person get(Integer id) {
@@ -68,36 +147,230 @@ public class PersonService {
         return person;
     }
 
-    private Iterable<Person> saveAll(Collection<Person> persons) {
-        Iterable<Person> personsDb = personRepository.saveAll(persons);
-        elasticsearchDao.saveAll(personsDb);
-        logger.debug("Saved [{}] persons", persons.size());
-        return personsDb;
+    /**
+     * @param consistency when the person must be searchable. The method returns once it is.
+     */
+    @CacheEvict(cacheNames = { "search", "aggregations" }, allEntries = true)
+    public Person upsert(Integer id, Person person, Consistency consistency) {
+        return write(consistency, entryIds -> {
+            Person target = person;
+            List<SuggestIndex.Term> previousTerms = Collections.emptyList();
+            FacetCounters.Facet previousFacet = null;
+            String previousRouting = null;
+            // We try to find an existing document
+            try {
+                Person personDb = get(id);
+                previousTerms = SuggestIndex.terms(personDb);
+                previousFacet = FacetCounters.facet(personDb);
+                previousRouting = SearchBackend.routing(personDb);
+                PersonMerger.replace(person, personDb);
+                target = personDb;
+            } catch (PersonNotFoundException ignored) { }
+            Person saved = personRepository.save(target);
+            // The outbox relay will send it to elasticsearch later
+            entryIds.add(outboxRepository.save(new OutboxEntry(saved.getId())).getId());
+            recordMove(saved, previousRouting, entryIds);
+            updateInMemory(previousTerms, SuggestIndex.terms(saved), previousFacet, FacetCounters.facet(saved));
+            return saved;
+        });
     }
 
-    public Person upsert(Integer id, Person person) {
-        // We try to find an existing document
-        try {
+    /**
+     * Update only the fields of the person which are not null. Elasticsearch will only
+     * receive the fields which actually changed.
+     * @param consistency when the changes must be searchable. The method returns once they are.
+     */
+    @CacheEvict(cacheNames = { "search", "aggregations" }, allEntries = true)
+    public Person patch(Integer id, Person person, Consistency consistency) {
+        return write(consistency, entryIds -> {
             Person personDb = get(id);
-            dozerBeanMapper.map(person, personDb);
-            person = personDb;
-            person.setId(id);
-        } catch (PersonNotFoundException ignored) { }
-        return saveAll(Collections.singleton(person)).iterator().next();
+            List<SuggestIndex.Term> previousTerms = SuggestIndex.terms(personDb);
+            FacetCounters.Facet previousFacet = FacetCounters.facet(personDb);
+            String previousRouting = SearchBackend.routing(personDb);
+            Map<String, Object> changes = PersonMerger.merge(person, personDb);
+            if (changes.isEmpty()) {
+                logger.debug("Person {} did not change", id);
+                return personDb;
+            }
+
+            personDb = personRepository.save(personDb);
+            entryIds.add(outboxRepository.save(new OutboxEntry(id, objectMapper.valueToTree(changes).toString())).getId());
+            recordMove(personDb, previousRouting, entryIds);
+            updateInMemory(previousTerms, SuggestIndex.terms(personDb), previousFacet, FacetCounters.facet(personDb));
+            logger.debug("Patched person {} with {}", id, changes);
+            return personDb;
+        });
+    }
+
+    /**
+     * When the country of a person changed, its document moves to another shard. A full entry
+     * in the outbox makes the relay index it again and delete it where it was.
+     */
+    private void recordMove(Person person, String previousRouting, List<Long> entryIds) {
+        if (previousRouting != null && !previousRouting.equals(SearchBackend.routing(person))) {
+            entryIds.add(outboxRepository.save(new OutboxEntry(person.getId(), null, previousRouting)).getId());
+        }
+    }
+
+    /**
+     * Run a write in a transaction. Once committed, wait for the outbox relay to send the entries it
+     * recorded with the refresh of the consistency. The documents are the current version of the persons,
+     * whatever the order of the requests, and only the immediate consistency forces a refresh.
+     * The wait happens out of the transaction, so it does not hold a database connection.
+     * @param write saves the persons and adds the ids of the outbox entries it recorded to its argument
+     */
+    private Person write(Consistency consistency, Function<List<Long>, Person> write) {
+        List<Long> entryIds = new ArrayList<>(2);
+        AtomicReference<CompletableFuture<Void>> sent = new AtomicReference<>();
+        Person written;
+        try {
+            written = transactionTemplate.execute(status -> {
+                Person person = write.apply(entryIds);
+                if (consistency.getRefresh() != null && !entryIds.isEmpty()) {
+                    // Watched before the commit: the relay can not send the entries before we wait for them
+                    sent.set(outboxRelay.watch(entryIds, consistency.getRefresh()));
+                }
+                return person;
+            });
+        } catch (RuntimeException e) {
+            outboxRelay.unwatch(entryIds);
+            throw e;
+        }
+        if (sent.get() != null) {
+            outboxRelay.await(sent.get());
+        }
+        return written;
     }
 
+    /**
+     * Search for a person in the background and log the result.
+     */
+    @Async
+    public void logSearch(String name) {
+        try {
+            logger.debug(search(name, "", "", 0, 10, null));
+        } catch (IOException e) {
+            logger.warn("Can not search for [{}]", name, e);
+        }
+    }
+
+    @Transactional
+    @CacheEvict(cacheNames = { "search", "aggregations" }, allEntries = true)
     public void delete(Integer id) {
         logger.debug("Person: {}", id);
 
         if (id != null) {
+            Optional<Person> person = personRepository.findById(id);
+            List<SuggestIndex.Term> terms = person
+                    .map(SuggestIndex::terms)
+                    .orElse(Collections.emptyList());
+            FacetCounters.Facet facet = person.map(FacetCounters::facet).orElse(null);
             personRepository.deleteById(id);
-            elasticsearchDao.delete(id);
+            outboxRepository.save(new OutboxEntry(id, null, person.map(SearchBackend::routing).orElse(null)));
+            updateInMemory(terms, Collections.emptyList(), facet, null);
         }
 
         logger.debug("Person deleted: {}", id);
     }
 
-    public String search(String q, String f_country, String f_date, Integer from, Integer size) throws IOException {
+    /**
+     * Update the suggestions and the facet counters once the transaction is committed, so a rollback
+     * does not leave values which do not exist in the database.
+     */
+    private void updateInMemory(List<SuggestIndex.Term> removedTerms, List<SuggestIndex.Term> addedTerms,
+                                FacetCounters.Facet removedFacet, FacetCounters.Facet addedFacet) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    suggestIndex.update(removedTerms, addedTerms);
+                    facetCounters.update(removedFacet, addedFacet);
+                }
+            });
+        } else {
+            suggestIndex.update(removedTerms, addedTerms);
+            facetCounters.update(removedFacet, addedFacet);
+        }
+    }
+
+    /**
+     * Autocomplete names, cities and countries from memory, without calling elasticsearch.
+     * @param size number of suggestions, at most app.suggest.max-size
+     */
+    public List<Suggestion> suggest(String prefix, int size) {
+        return suggestIndex.suggest(prefix, Math.min(size, suggestMaxSize));
+    }
+
+    /**
+     * @param cursor to walk through all the results: {@link SearchBackend#FIRST_PAGE} and then
+     *               the next_cursor of the previous response. When set, from is ignored.
+     */
+    @Cacheable(cacheNames = "search", keyGenerator = "searchKeyGenerator")
+    public String search(String q, String f_country, String f_date, Integer from, Integer size, String cursor) throws IOException {
+        // The search is built from the parameters as they are in the cache key
+        return normalizedSearch(text(q), text(f_country), text(f_date), from, size, text(cursor));
+    }
+
+    private String normalizedSearch(String q, String f_country, String f_date, Integer from, Integer size, String cursor) throws IOException {
+        Query query = searchQuery(q, f_country, f_date);
+        return searches.execute(SearchKeyGenerator.key("search", q, f_country, f_date, from, size, cursor),
+                () -> searchWithAggregations(query, searchRouting(f_country), SearchKeyGenerator.key("search", q, f_country, f_date),
+                        searchFacets(q, f_country, f_date), from, size, cursor));
+    }
+
+    /**
+     * Same as {@link #search(String, String, String, Integer, Integer, String)} but no thread waits for elasticsearch.
+     * It shares the cache entries of the blocking search.
+     */
+    public CompletableFuture<String> searchAsync(String q, String f_country, String f_date, Integer from, Integer size, String cursor) {
+        return normalizedSearchAsync(text(q), text(f_country), text(f_date), from, size, text(cursor));
+    }
+
+    private CompletableFuture<String> normalizedSearchAsync(String q, String f_country, String f_date,
+                                                            Integer from, Integer size, String cursor) {
+        Query query = searchQuery(q, f_country, f_date);
+        SimpleKey key = SearchKeyGenerator.key("search", q, f_country, f_date, from, size, cursor);
+        return cachedAsync("search", key, () -> searches.executeAsync(key,
+                () -> searchWithAggregationsAsync(query, searchRouting(f_country), SearchKeyGenerator.key("search", q, f_country, f_date),
+                        searchFacets(q, f_country, f_date), from, size, cursor)));
+    }
+
+    /**
+     * Same as {@link #search(String, String, String, Integer, Integer, String)} but the elasticsearch
+     * response is copied as is to the output stream. The result is not cached.
+     */
+    public void rawSearch(String q, String f_country, String f_date, Integer from, Integer size, OutputStream out) throws IOException {
+        try {
+            searchBackend.rawSearch(searchQuery(text(q), text(f_country), text(f_date)), searchRouting(text(f_country)),
+                    from, size, out);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * Persons are routed by country. When the search is filtered on a country, only the shard
+     * holding its persons is asked.
+     * @return the routing of the country, or null to search all the shards
+     */
+    static String searchRouting(String f_country) {
+        return SearchBackend.routing(f_country);
+    }
+
+    /**
+     * Without any text, the search only filters on the country and on the decade: its aggregations
+     * can be computed from the facet counters.
+     * @return the aggregations, or null when elasticsearch must compute them
+     */
+    private Map<String, Aggregate> searchFacets(String q, String f_country, String f_date) {
+        if (!inMemoryFacets || !Strings.isEmpty(q)) {
+            return null;
+        }
+        return facetCounters.aggregations(Strings.hasText(f_country) ? f_country : null,
+                Strings.hasText(f_date) ? Integer.valueOf(f_date) : null);
+    }
+
+    static Query searchQuery(String q, String f_country, String f_date) {
         Query textQuery;
 
         // If the user does not provide any text to query, let's match all documents
@@ -132,48 +405,161 @@ public class PersonService {
         } else {
             query = textQuery;
         }
-
-        return elasticsearchDao.search(query, from, size);
+        return query;
     }
 
+    @Cacheable(cacheNames = "search", keyGenerator = "searchKeyGenerator")
     public String advancedSearch(String name, String country, String city, Integer from, Integer size) throws IOException {
-        Query query;
+        // The search is built from the parameters as they are in the cache key
+        return normalizedAdvancedSearch(text(name), text(country), text(city), from, size);
+    }
 
+    private String normalizedAdvancedSearch(String name, String country, String city, Integer from, Integer size) throws IOException {
+        Query query = advancedSearchQuery(name, country, city);
+        return searches.execute(SearchKeyGenerator.key("advancedSearch", name, country, city, from, size),
+                () -> searchWithAggregations(query, null, SearchKeyGenerator.key("advancedSearch", name, country, city),
+                        advancedSearchFacets(name, country, city), from, size, null));
+    }
+
+    /**
+     * Same as {@link #advancedSearch(String, String, String, Integer, Integer)} but no thread waits for elasticsearch.
+     * It shares the cache entries of the blocking search.
+     */
+    public CompletableFuture<String> advancedSearchAsync(String name, String country, String city, Integer from, Integer size) {
+        return normalizedAdvancedSearchAsync(text(name), text(country), text(city), from, size);
+    }
+
+    private CompletableFuture<String> normalizedAdvancedSearchAsync(String name, String country, String city,
+                                                                    Integer from, Integer size) {
+        Query query = advancedSearchQuery(name, country, city);
+        SimpleKey key = SearchKeyGenerator.key("advancedSearch", name, country, city, from, size);
+        return cachedAsync("search", key, () -> searches.executeAsync(key,
+                () -> searchWithAggregationsAsync(query, null, SearchKeyGenerator.key("advancedSearch", name, country, city),
+                        advancedSearchFacets(name, country, city), from, size, null)));
+    }
+
+    /**
+     * Same as {@link #advancedSearch(String, String, String, Integer, Integer)} but the elasticsearch
+     * response is copied as is to the output stream. The result is not cached.
+     */
+    public void rawAdvancedSearch(String name, String country, String city, Integer from, Integer size, OutputStream out) throws IOException {
+        try {
+            searchBackend.rawSearch(advancedSearchQuery(text(name), text(country), text(city)), null, from, size, out);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * The fields of the advanced search are fuzzy: only the aggregations of all the persons
+     * can be computed from the facet counters.
+     */
+    private Map<String, Aggregate> advancedSearchFacets(String name, String country, String city) {
+        if (!inMemoryFacets || !Strings.isEmpty(name) || !Strings.isEmpty(country) || !Strings.isEmpty(city)) {
+            return null;
+        }
+        return facetCounters.aggregations(null, null);
+    }
+
+    static Query advancedSearchQuery(String name, String country, String city) {
         // If the user does not provide any text to query, let's match all documents
         if (Strings.isEmpty(name) && Strings.isEmpty(country) && Strings.isEmpty(city)) {
-            query = Query.of(qb -> qb.matchAll(maq -> maq));
+            return Query.of(qb -> qb.matchAll(maq -> maq));
+        }
+        return Query.of(qb -> qb.bool(
+                bq -> {
+                    if (Strings.hasText(name)) {
+                        bq.must(mb -> mb.match(mq -> mq.field("name.ngram").query(name).fuzziness("auto")));
+                    }
+                    if (Strings.hasText(country)) {
+                        bq.must(mb -> mb.match(mq -> mq.field("address.country.ngram").query(country).fuzziness("auto")));
+                    }
+                    if (Strings.hasText(city)) {
+                        bq.must(mb -> mb.match(mq -> mq.field("address.city.ngram").query(city).fuzziness("auto")));
+                    }
+                    return bq;
+                })
+        );
+    }
+
+    /**
+     * Run the query for the requested page. Aggregations only depend on the query and
+     * the filters, so we compute them once and share them between all the pages.
+     * @param facets the aggregations when they are already known, or null
+     */
+    private String searchWithAggregations(Query query, String routing, SimpleKey aggregationsKey, Map<String, Aggregate> facets,
+                                          Integer from, Integer size, String cursor) throws IOException {
+        Map<String, Aggregate> aggregations;
+        Cache cache = cacheManager.getCache("aggregations");
+        if (facets != null) {
+            aggregations = facets;
+        } else if (cache == null) {
+            aggregations = searchBackend.aggregations(query, routing);
         } else {
-            query = Query.of(qb -> qb.bool(
-                    bq -> {
-                        if (Strings.hasText(name)) {
-                            bq.must(mb -> mb.match(mq -> mq.field("name.ngram").query(name).fuzziness("auto")));
-                        }
-                        if (Strings.hasText(country)) {
-                            bq.must(mb -> mb.match(mq -> mq.field("address.country.ngram").query(country).fuzziness("auto")));
-                        }
-                        if (Strings.hasText(city)) {
-                            bq.must(mb -> mb.match(mq -> mq.field("address.city.ngram").query(city).fuzziness("auto")));
-                        }
-                        return bq;
-                    })
-            );
+            try {
+                aggregations = cache.get(aggregationsKey, () -> searchBackend.aggregations(query, routing));
+            } catch (Cache.ValueRetrievalException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
         }
 
-        return elasticsearchDao.search(query, from, size);
+        try {
+            return searchBackend.search(query, routing, from, size, cursor, aggregations);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
     }
 
-    private final AtomicInteger currentItem = new AtomicInteger();
-    private long start = 0;
+    private CompletableFuture<String> searchWithAggregationsAsync(Query query, String routing, SimpleKey aggregationsKey,
+                                                                  Map<String, Aggregate> facets,
+                                                                  Integer from, Integer size, String cursor) {
+        CompletableFuture<Map<String, Aggregate>> aggregations = facets != null ? CompletableFuture.completedFuture(facets)
+                : cachedAsync("aggregations", aggregationsKey, () -> searchBackend.aggregationsAsync(query, routing));
+        try {
+            return searchBackend.searchAsync(query, routing, from, size, cursor, aggregations);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
 
-    public InitResult init(Integer size) throws IOException {
-        currentItem.set(0);
+    /**
+     * Read a value from a cache or compute it asynchronously and then put it in the cache.
+     * We can't rely on {@link Cacheable} here as the caches are not created in async mode.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> cachedAsync(String cacheName, Object key, Supplier<CompletableFuture<T>> loader) {
+        Cache cache = cacheManager.getCache(cacheName);
+        if (cache == null) {
+            return loader.get();
+        }
+        Cache.ValueWrapper cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture((T) cached.get());
+        }
+        return loader.get().thenApply(value -> {
+            cache.put(key, value);
+            return value;
+        });
+    }
+
+    /**
+     * Generate persons in the background. See {@link JobService} to follow or cancel the job.
+     */
+    public JobResult startInit(int size) {
+        return jobService.submit("init", List.of("generate", "db", "index"), job -> init(size, job));
+    }
 
+    private InitResult init(int size, Job job) throws IOException {
         logger.debug("Initializing database for {} persons", size);
-        start = System.nanoTime();
+        long start = System.nanoTime();
 
-        Collection<Person> persons = new ArrayList<>();
+        long datasetSeed = seed != null ? seed : ThreadLocalRandom.current().nextLong();
+        List<Person> persons = new ArrayList<>();
 
-        Person joe = PersonGenerator.personGenerator();
+        Person joe = PersonGenerator.personGenerator(datasetSeed, 0);
         joe.setName("Joe Smith");
         joe.getAddress().setCountry("France");
         joe.getAddress().setCity("Paris");
@@ -181,9 +567,8 @@ public class PersonService {
         joe.getAddress().setLocation(new GeoPoint(48.84, 2.31));
 
         persons.add(joe);
-        currentItem.incrementAndGet();
 
-        Person franceGall = PersonGenerator.personGenerator();
+        Person franceGall = PersonGenerator.personGenerator(datasetSeed, -1);
         franceGall.setName("France Gall");
         franceGall.setGender("female");
         franceGall.getAddress().setCountry("Italy");
@@ -192,46 +577,65 @@ public class PersonService {
         franceGall.getAddress().setLocation(new GeoPoint(40.72, 13.90));
 
         persons.add(franceGall);
-        currentItem.incrementAndGet();
-
-        // We generate numPersons persons and every batchSize, we send them to the DB
-        for (int i = 2; i < size; i++) {
-            Person person = PersonGenerator.personGenerator();
-            persons.add(person);
-            currentItem.incrementAndGet();
-            if (i % batchSize == 0) {
-                saveAll(persons);
-            }
-        }
-
-        // Save all remaining persons
-        saveAll(persons);
 
-        long took = (System.nanoTime() - start) / 1_000_000;
+        // We generate the other persons in parallel and send them to the DB and to elasticsearch every batchSize
+        InitPipeline pipeline = new InitPipeline(
+                generators > 0 ? generators : Runtime.getRuntime().availableProcessors(),
+                Math.max(writers, 1), Math.max(batchSize, 1), Math.max(queueSize, 1), datasetSeed,
+                batch -> {
+                    Iterable<Person> saved = personRepository.saveAll(batch);
+                    saved.forEach(suggestIndex::add);
+                    saved.forEach(facetCounters::add);
+                    return saved;
+                },
+                searchBackend::saveAll, job);
+        pipeline.run(persons, Math.max(size - persons.size(), 0));
+
+        long took = Math.max((System.nanoTime() - start) / 1_000_000, 1);
 
         logger.debug("Database initialized with {} persons. Took: {} ms, around {} per second.",
                 size, took, 1000L * size / took);
 
         return new InitResult(took, 1000L * size / took, size);
     }
-
-    public InitResult getInitCurrentAchievement() {
-        int current = currentItem.get();
-        long took = (System.nanoTime() - start) / 1_000_000;
-        return new InitResult(took, 1000L * current / took, current);
-    }
     
     
+    /**
+     * Write all the persons of the index as NDJSON, one person per line.
+     * @param slices number of slices of the index read in parallel
+     */
+    public long export(OutputStream out, int slices) throws IOException {
+        try {
+            return searchBackend.scan(exportPageSize, slices, person -> {
+                try {
+                    byte[] line = objectMapper.writeValueAsBytes(person);
+                    synchronized (out) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @CacheEvict(cacheNames = { "search", "aggregations" }, allEntries = true)
     public void clearDatabaseAndIndex() {
         logger.warn("Iniciando limpeza da base de dados e do Elasticsearch...");
 
         // 1️⃣ Apagar todos os registros no banco de dados
-        personRepository.deleteAll();
+        personRepository.deleteAllInBulk();
+        outboxRepository.deleteAllInBulk();
+        suggestIndex.clear();
+        facetCounters.clear();
         logger.info("Todos os registros foram removidos do banco de dados.");
 
         // 2️⃣ Apagar todos os documentos no Elasticsearch
         try {
-            elasticsearchDao.deleteAll();
+            searchBackend.deleteAll();
             logger.info("Todos os documentos foram removidos do índice Elasticsearch.");
         } catch (IOException e) {
             logger.error("Erro ao limpar o Elasticsearch", e);
@@ -239,35 +643,6 @@ public class PersonService {
 
         logger.warn("Limpeza concluída.");
     }
-    
-    public void measureQueryPerformance() {
-        logger.warn("Iniciando medição do tempo de busca...");
-
-        // Medir tempo da busca no banco de dados MySQL
-        long startDb = System.nanoTime();
-        
-        // Converter Iterable<Person> para List<Person>
-        List<Person> dbResults = new ArrayList<>();
-        personRepository.findAll().forEach(dbResults::add);
-
-        long endDb = System.nanoTime();
-        long dbTimeMs = (endDb - startDb) / 1_000_000;
-        logger.info("Tempo para buscar no Banco de Dados (MySQL): {} ms - Registros encontrados: {}", dbTimeMs, dbResults.size());
-
-        // Medir tempo da busca no Elasticsearch
-        long startEs = System.nanoTime();
-        String esResults = "";
-        try {
-            esResults = elasticsearchDao.searchAll();
-        } catch (IOException e) {
-            logger.error("Erro ao buscar no Elasticsearch", e);
-        }
-        long endEs = System.nanoTime();
-        long esTimeMs = (endEs - startEs) / 1_000_000;
-        logger.info("Tempo para buscar no Elasticsearch: {} ms", esTimeMs);
-
-        logger.warn("Medição concluída. MySQL: {} ms, Elasticsearch: {} ms", dbTimeMs, esTimeMs);
-    }
 
 
 }
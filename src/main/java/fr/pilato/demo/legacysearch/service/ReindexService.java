@@ -0,0 +1,251 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import fr.pilato.demo.legacysearch.dao.ElasticsearchDao;
+import fr.pilato.demo.legacysearch.dao.PersonRepository;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.webapp.BadRequestException;
+import fr.pilato.demo.legacysearch.webapp.ReindexResult;
+
+/**
+ * Rebuild the index from the database without any downtime.
+ * <ol>
+ *     <li>A new person-vN index is created without replica and refresh. From now on, all the writes
+ *     are sent both to the current index and to the new one.</li>
+ *     <li>The persons are read from the database by id ranges, in parallel, and sent to the new index.</li>
+ *     <li>The persons written during the load are copied again from the database, as the load could have
+ *     read them before they changed.</li>
+ *     <li>Replicas and refresh are restored and the person alias is moved to the new index.</li>
+ * </ol>
+ * When the reindex fails, the new index is deleted.
+ */
+@Service
+@ConditionalOnProperty(name = "app.search.backend", havingValue = "elasticsearch", matchIfMissing = true)
+public class ReindexService {
+    private final Logger logger = LoggerFactory.getLogger(ReindexService.class);
+
+    // Number of id ranges read in parallel
+    @Value("${app.reindex.slices:4}")
+    private int slices;
+
+    @Value("${app.reindex.page-size:1000}")
+    private int pageSize;
+
+    // 0 means no limit
+    @Value("${app.reindex.max-docs-per-second:0}")
+    private long maxDocsPerSecond;
+
+    // The persons written during the load are copied again until there is none left or we did it that many times
+    private static final int MAX_CATCH_UP_PASSES = 10;
+
+    private final PersonRepository personRepository;
+    private final ElasticsearchDao elasticsearchDao;
+    private final CacheManager cacheManager;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private volatile String index;
+    private volatile String phase = "none";
+    private volatile long start;
+    private volatile long end;
+
+    public ReindexService(PersonRepository personRepository, ElasticsearchDao elasticsearchDao, CacheManager cacheManager) {
+        this.personRepository = personRepository;
+        this.elasticsearchDao = elasticsearchDao;
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * Start a reindex in the background.
+     * @throws BadRequestException if a reindex is already running
+     */
+    public ReindexResult reindex() {
+        if (!running.compareAndSet(false, true)) {
+            throw new BadRequestException("A reindex is already running");
+        }
+        loaded.set(0);
+        sent.set(0);
+        index = null;
+        phase = "starting";
+        start = System.nanoTime();
+        end = 0;
+
+        Thread thread = new Thread(this::run, "reindex");
+        thread.setDaemon(true);
+        thread.start();
+        return getStatus();
+    }
+
+    public ReindexResult getStatus() {
+        long took = ((end != 0 ? end : System.nanoTime()) - start) / 1_000_000;
+        long current = loaded.get();
+        return new ReindexResult(index, phase, took, took > 0 ? 1000L * current / took : 0, current);
+    }
+
+    private void run() {
+        try {
+            phase = "creating";
+            index = elasticsearchDao.createNextIndex();
+            elasticsearchDao.startDualWrites(index);
+
+            phase = "loading";
+            load();
+
+            phase = "catching up";
+            catchUp();
+
+            phase = "swapping";
+            elasticsearchDao.restoreSettings(index);
+            elasticsearchDao.swapAlias(index);
+            elasticsearchDao.stopDualWrites();
+            clearCaches();
+
+            phase = "done";
+            logger.info("Reindexed {} persons into {} in {} ms", loaded.get(), index, getStatus().getTook());
+        } catch (Exception e) {
+            elasticsearchDao.stopDualWrites();
+            phase = "failed: " + e.getMessage();
+            logger.warn("Reindex into {} failed", index, e);
+            dropIndex();
+        } finally {
+            end = System.nanoTime();
+            running.set(false);
+        }
+    }
+
+    /**
+     * Remove the index of a failed reindex: it has no replica and no refresh, and the next reindex
+     * would create another one anyway.
+     */
+    private void dropIndex() {
+        if (index == null) {
+            return;
+        }
+        try {
+            elasticsearchDao.deleteIndex(index);
+        } catch (Exception e) {
+            logger.warn("Can not delete index {}: remove it by hand. {}", index, e.getMessage());
+        }
+    }
+
+    private void load() throws IOException, InterruptedException {
+        Integer min = personRepository.findMinId();
+        Integer max = personRepository.findMaxId();
+        if (min == null || max == null) {
+            return;
+        }
+
+        // Ids come from a sequence, so ranges of the same width hold about the same number of persons
+        int ranges = Math.max(slices, 1);
+        long width = ((long) max - min + ranges) / ranges;
+        ExecutorService executor = Executors.newFixedThreadPool(ranges);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(ranges);
+            for (int i = 0; i < ranges; i++) {
+                int after = (int) (min - 1 + i * width);
+                int last = i == ranges - 1 ? max : (int) (min - 1 + (i + 1) * width);
+                futures.add(executor.submit(() -> loadRange(after, last)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Reindex failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Void loadRange(int after, int last) throws IOException, InterruptedException {
+        logger.debug("Loading persons with id in ]{}, {}] into {}", after, last, index);
+        List<Person> persons;
+        while (!(persons = personRepository.findIdRange(after, last, PageRequest.of(0, pageSize))).isEmpty()) {
+            throttle(persons.size());
+            elasticsearchDao.load(index, persons);
+            loaded.addAndGet(persons.size());
+            after = persons.get(persons.size() - 1).getId();
+        }
+        return null;
+    }
+
+    /**
+     * Wait until sending that many more persons stays under the allowed rate since the start.
+     */
+    private void throttle(int persons) throws InterruptedException {
+        if (maxDocsPerSecond <= 0) {
+            return;
+        }
+        long due = start + TimeUnit.SECONDS.toNanos(sent.addAndGet(persons)) / maxDocsPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private void catchUp() throws IOException {
+        for (int pass = 0; pass < MAX_CATCH_UP_PASSES; pass++) {
+            Set<Integer> ids = elasticsearchDao.takeDirtyIds();
+            if (ids.isEmpty()) {
+                return;
+            }
+            logger.debug("Copying again {} persons written during the reindex", ids.size());
+            // A person may have moved to another country, and then to another shard, since it was copied:
+            // remove all the copies before indexing the persons which still exist
+            elasticsearchDao.remove(index, ids);
+            elasticsearchDao.load(index, personRepository.findAllById(ids));
+        }
+        // They are also sent to the new index as they are written, so we can move on
+        logger.debug("Persons are still being written after {} passes", MAX_CATCH_UP_PASSES);
+    }
+
+    private void clearCaches() {
+        for (String name : List.of("search", "aggregations")) {
+            Cache cache = cacheManager.getCache(name);
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+    }
+}
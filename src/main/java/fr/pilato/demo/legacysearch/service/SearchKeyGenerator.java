@@ -0,0 +1,63 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.lang.reflect.Method;
+
+import org.springframework.cache.interceptor.KeyGenerator;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the keys of the search cache. Text parameters are normalized so
+ * a missing parameter, an empty one or one with only spaces share the same entry.
+ * The searches must be built from the normalized parameters too, see {@link #text(String)}:
+ * all the calls sharing an entry then run the same search.
+ */
+@Component
+public class SearchKeyGenerator implements KeyGenerator {
+
+    @Override
+    public Object generate(Object target, Method method, Object... params) {
+        return key(method.getName(), params);
+    }
+
+    /**
+     * Build the same key as the one used by the cache for a call to {@code method} with {@code params}.
+     */
+    static SimpleKey key(String method, Object... params) {
+        Object[] key = new Object[params.length + 1];
+        key[0] = method;
+        for (int i = 0; i < params.length; i++) {
+            key[i + 1] = normalize(params[i]);
+        }
+        return new SimpleKey(key);
+    }
+
+    static Object normalize(Object param) {
+        return param instanceof String ? text((String) param) : param == null ? "" : param;
+    }
+
+    /**
+     * @return the text parameter as it is in the keys
+     */
+    static String text(String param) {
+        return param == null ? "" : param.trim();
+    }
+}
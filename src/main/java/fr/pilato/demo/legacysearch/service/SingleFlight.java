@@ -0,0 +1,172 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Table of the calls in flight, by key. A call made while an identical one is running
+ * does not run: it waits for the running one and gets the same result or error.
+ * Nothing is kept once the call is done: this is not a cache. A call never waits longer than
+ * maxWait for an identical one: then it runs on its own.
+ * <p>
+ * Meters: {@code search.singleflight.calls} tagged with {@code outcome} (executed or coalesced),
+ * {@code search.singleflight.ratio}, the share of the calls which have been coalesced, and
+ * {@code search.singleflight.inflight}.
+ */
+class SingleFlight<V> {
+
+    /**
+     * A blocking call
+     */
+    @FunctionalInterface
+    interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private final ConcurrentMap<Object, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Duration maxWait;
+    private final Counter executed;
+    private final Counter coalesced;
+
+    SingleFlight(MeterRegistry meterRegistry, String name, Duration maxWait) {
+        this.maxWait = maxWait;
+        executed = Counter.builder("search.singleflight.calls")
+                .description("Calls which went to the backend or joined an identical call in flight")
+                .tag("name", name)
+                .tag("outcome", "executed")
+                .register(meterRegistry);
+        coalesced = Counter.builder("search.singleflight.calls")
+                .description("Calls which went to the backend or joined an identical call in flight")
+                .tag("name", name)
+                .tag("outcome", "coalesced")
+                .register(meterRegistry);
+        Gauge.builder("search.singleflight.ratio", this, SingleFlight::ratio)
+                .description("Share of the calls which joined an identical call in flight")
+                .tag("name", name)
+                .register(meterRegistry);
+        Gauge.builder("search.singleflight.inflight", inFlight, ConcurrentMap::size)
+                .description("Distinct calls in flight")
+                .tag("name", name)
+                .register(meterRegistry);
+    }
+
+    private double ratio() {
+        double total = executed.count() + coalesced.count();
+        return total == 0 ? 0 : coalesced.count() / total;
+    }
+
+    /**
+     * Run the call, unless an identical one is in flight: then wait for its result.
+     */
+    V execute(Object key, Call<V> call) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return join(running);
+            } catch (TimeoutException e) {
+                return call.call();
+            }
+        }
+
+        executed.increment();
+        try {
+            V value = call.call();
+            mine.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // Whatever the failure, even an Error, the calls waiting for this one must be released
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Same as {@link #execute(Object, Call)} without blocking: an identical call in flight,
+     * blocking or not, is shared.
+     */
+    CompletableFuture<V> executeAsync(Object key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            // A copy, so a caller giving up does not cancel the call for the others
+            return running.copy();
+        }
+
+        executed.increment();
+        try {
+            call.get().whenComplete((value, e) -> {
+                inFlight.remove(key, mine);
+                if (e != null) {
+                    mine.completeExceptionally(e);
+                } else {
+                    mine.complete(value);
+                }
+            });
+        } catch (Throwable e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        return mine.copy();
+    }
+
+    private V join(CompletableFuture<V> running) throws IOException, TimeoutException {
+        try {
+            return running.get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an identical search", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // An async call fails with a CompletionException wrapping the actual error
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import fr.pilato.demo.legacysearch.dao.SearchBackend;
+import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.helper.Strings;
+import fr.pilato.demo.legacysearch.webapp.Suggestion;
+
+/**
+ * In memory index of the names, cities and countries of all the persons, used to autocomplete
+ * what the user types without sending a query to elasticsearch.
+ * <p>
+ * Values are kept in a sorted map, keyed by their lowercased form without accents, so all the
+ * values starting with a prefix are a contiguous range of the map. Each value counts the persons
+ * having it, so it disappears when the last one is deleted or updated.
+ * <p>
+ * The index is read into a new map. The changes committed meanwhile are kept aside and applied
+ * once it has been read, so they are neither lost nor counted twice.
+ */
+@Component
+class SuggestIndex {
+    private final Logger logger = LoggerFactory.getLogger(SuggestIndex.class);
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    // Separates the value from its type in the keys, so the same value can be a name and a city
+    private static final char SEPARATOR = '\u0000';
+
+    private static final Comparator<Entry> BY_COUNT = Comparator.comparingLong((Entry e) -> e.count)
+            .thenComparing((Entry e) -> e.text, Comparator.reverseOrder());
+
+    private volatile NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    // Changes committed until the values are loaded, removed and added terms of each. Null once loaded.
+    private List<List<Term>[]> pending = new ArrayList<>();
+    private boolean clearedWhileLoading;
+
+    private final SearchBackend searchBackend;
+
+    @Value("${app.export.page-size:1000}")
+    private int pageSize;
+
+    SuggestIndex(SearchBackend searchBackend) {
+        this.searchBackend = searchBackend;
+    }
+
+    /**
+     * A value which can be suggested
+     */
+    static final class Term {
+        private final String text;
+        private final String type;
+
+        private Term(String text, String type) {
+            this.text = text;
+            this.type = type;
+        }
+    }
+
+    private static final class Entry {
+        private final String text;
+        private final String type;
+        private final long count;
+
+        private Entry(String text, String type, long count) {
+            this.text = text;
+            this.type = type;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Load the values of the persons already in the index. The database is recreated
+     * when the application starts, so elasticsearch is the one which knows them.
+     * This runs once the application is ready, so it does not delay the startup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        synchronized (this) {
+            if (pending == null) {
+                pending = new ArrayList<>();
+            }
+            clearedWhileLoading = false;
+        }
+        try {
+            long start = System.nanoTime();
+            NavigableMap<String, Entry> loading = new ConcurrentSkipListMap<>();
+            long persons = searchBackend.scan(pageSize, 1, person -> update(loading, List.of(), terms(person)));
+            synchronized (this) {
+                NavigableMap<String, Entry> loaded = clearedWhileLoading ? new ConcurrentSkipListMap<>() : loading;
+                for (List<Term>[] change : pending) {
+                    update(loaded, change[0], change[1]);
+                }
+                pending = null;
+                entries = loaded;
+            }
+            logger.info("Suggestions loaded from {} persons in {} ms: {} values",
+                    persons, (System.nanoTime() - start) / 1_000_000, entries.size());
+        } catch (Exception e) {
+            synchronized (this) {
+                // Keep what has been added so far and follow the next changes
+                for (List<Term>[] change : pending) {
+                    update(entries, change[0], change[1]);
+                }
+                pending = null;
+            }
+            logger.warn("Can not load the suggestions from elasticsearch: {}", e.getMessage());
+            logger.debug("Full stack trace", e);
+        }
+    }
+
+    /**
+     * Extract the values of a person which can be suggested: each word of the name,
+     * the city and the country.
+     */
+    static List<Term> terms(Person person) {
+        List<Term> terms = new ArrayList<>(4);
+        if (Strings.hasText(person.getName())) {
+            for (String word : SPACES.split(person.getName().trim())) {
+                terms.add(new Term(word, "name"));
+            }
+        }
+        if (person.getAddress() != null) {
+            if (Strings.hasText(person.getAddress().getCity())) {
+                terms.add(new Term(person.getAddress().getCity().trim(), "city"));
+            }
+            if (Strings.hasText(person.getAddress().getCountry())) {
+                terms.add(new Term(person.getAddress().getCountry().trim(), "country"));
+            }
+        }
+        return terms;
+    }
+
+    void add(Person person) {
+        update(List.of(), terms(person));
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void update(List<Term> removed, List<Term> added) {
+        if (pending != null) {
+            pending.add(new List[] { removed, added });
+        } else {
+            update(entries, removed, added);
+        }
+    }
+
+    private static void update(NavigableMap<String, Entry> entries, Collection<Term> removed, Collection<Term> added) {
+        for (Term term : removed) {
+            entries.computeIfPresent(key(term), (k, e) -> e.count <= 1 ? null : new Entry(e.text, e.type, e.count - 1));
+        }
+        for (Term term : added) {
+            entries.merge(key(term), new Entry(term.text, term.type, 1),
+                    (e, one) -> new Entry(e.text, e.type, e.count + 1));
+        }
+    }
+
+    synchronized void clear() {
+        entries = new ConcurrentSkipListMap<>();
+        if (pending != null) {
+            // The persons being read have been removed as well
+            pending.clear();
+            clearedWhileLoading = true;
+        }
+    }
+
+    /**
+     * @return the values starting with the prefix, the most frequent first
+     */
+    List<Suggestion> suggest(String prefix, int size) {
+        if (Strings.isEmpty(prefix) || size <= 0) {
+            return List.of();
+        }
+        String from = normalize(prefix.trim());
+        if (from.isEmpty()) {
+            return List.of();
+        }
+
+        // Keep the most frequent values only
+        PriorityQueue<Entry> top = new PriorityQueue<>(size + 1, BY_COUNT);
+        for (Entry entry : entries.subMap(from, true, from + Character.MAX_VALUE, true).values()) {
+            top.add(entry);
+            if (top.size() > size) {
+                top.poll();
+            }
+        }
+
+        List<Suggestion> suggestions = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            Entry entry = top.poll();
+            suggestions.add(0, new Suggestion(entry.text, entry.type, entry.count));
+        }
+        return suggestions;
+    }
+
+    private static String key(Term term) {
+        return normalize(term.text) + SEPARATOR + term.type;
+    }
+
+    private static String normalize(String text) {
+        String ascii = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        return ascii.toLowerCase(Locale.ROOT);
+    }
+}
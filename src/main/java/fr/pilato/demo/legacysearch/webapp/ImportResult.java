@@ -0,0 +1,68 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.webapp;
+
+import java.util.List;
+
+/**
+ * Result of a bulk import: the persons imported, like {@link InitResult}, and the records which could not be.
+ */
+public class ImportResult extends InitResult {
+
+    private final int failed;
+    private final List<LineError> errors;
+
+    /**
+     * @return the number of records which have not been imported
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the first errors only, when there are too many of them
+     */
+    public List<LineError> getErrors() {
+        return errors;
+    }
+
+    public ImportResult(long took, long rate, int current, int failed, List<LineError> errors) {
+        super(took, rate, current);
+        this.failed = failed;
+        this.errors = errors;
+    }
+
+    public static class LineError {
+        private final long line;
+        private final String error;
+
+        public long getLine() {
+            return line;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public LineError(long line, String error) {
+            this.line = line;
+            this.error = error;
+        }
+    }
+}
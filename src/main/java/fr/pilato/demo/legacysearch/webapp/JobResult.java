@@ -0,0 +1,122 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.webapp;
+
+import java.util.Map;
+
+/**
+ * Status of a job loading persons in the background
+ */
+public class JobResult {
+
+    private final String id;
+    private final String type;
+    private final String state;
+    private final String error;
+    private final long took;
+    private final long rate;
+    private final long current;
+    private final Map<String, PhaseResult> phases;
+    private final Object result;
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return init or import
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return queued, running, done, failed or cancelled
+     */
+    public String getState() {
+        return state;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getTook() {
+        return took;
+    }
+
+    /**
+     * @return persons per second over the last 10 seconds while the job runs, over the whole job once it is finished
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the number of persons which went through all the phases
+     */
+    public long getCurrent() {
+        return current;
+    }
+
+    public Map<String, PhaseResult> getPhases() {
+        return phases;
+    }
+
+    /**
+     * @return what the job returned once it is done
+     */
+    public Object getResult() {
+        return result;
+    }
+
+    public JobResult(String id, String type, String state, String error, long took, long rate, long current,
+                     Map<String, PhaseResult> phases, Object result) {
+        this.id = id;
+        this.type = type;
+        this.state = state;
+        this.error = error;
+        this.took = took;
+        this.rate = rate;
+        this.current = current;
+        this.phases = phases;
+        this.result = result;
+    }
+
+    public static class PhaseResult {
+        private final long current;
+        private final long took;
+
+        public long getCurrent() {
+            return current;
+        }
+
+        /**
+         * @return the time spent in the phase. When it runs in several threads, their times add up.
+         */
+        public long getTook() {
+            return took;
+        }
+
+        public PhaseResult(long current, long took) {
+            this.current = current;
+            this.took = took;
+        }
+    }
+}
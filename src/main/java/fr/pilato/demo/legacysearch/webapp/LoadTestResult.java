@@ -0,0 +1,106 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.webapp;
+
+import java.util.Map;
+
+public class LoadTestResult {
+
+    private final int concurrency;
+    private final long duration;
+    private final Map<String, Backend> backends;
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return duration of the test of each backend, in ms
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the results by backend: elasticsearch and/or database
+     */
+    public Map<String, Backend> getBackends() {
+        return backends;
+    }
+
+    public LoadTestResult(int concurrency, long duration, Map<String, Backend> backends) {
+        this.concurrency = concurrency;
+        this.duration = duration;
+        this.backends = backends;
+    }
+
+    /**
+     * What a backend achieved. Latencies are in ms.
+     */
+    public static class Backend {
+        private final long requests;
+        private final long errors;
+        private final double throughput;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return requests per second
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public Backend(long requests, long errors, double throughput, double p50, double p99, double p999, double max) {
+            this.requests = requests;
+            this.errors = errors;
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+    }
+}
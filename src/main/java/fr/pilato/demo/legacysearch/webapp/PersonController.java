@@ -19,29 +19,58 @@
 package fr.pilato.demo.legacysearch.webapp;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import fr.pilato.demo.legacysearch.domain.Person;
+import fr.pilato.demo.legacysearch.service.Consistency;
+import fr.pilato.demo.legacysearch.service.JobService;
+import fr.pilato.demo.legacysearch.service.LoadTestService;
+import fr.pilato.demo.legacysearch.service.PersonImporter;
 import fr.pilato.demo.legacysearch.service.PersonService;
+import fr.pilato.demo.legacysearch.service.ReindexService;
 
 @RestController
 public class PersonController {
     private final Logger logger = LoggerFactory.getLogger(PersonController.class);
 
     private final PersonService personService;
+    // Only available with the elasticsearch backend
+    private final ObjectProvider<ReindexService> reindexService;
+    private final LoadTestService loadTestService;
+    private final PersonImporter personImporter;
+    private final JobService jobService;
+
+    @Value("${app.export.max-slices:8}")
+    private int exportMaxSlices;
 
-    public PersonController(PersonService personService) {
+    public PersonController(PersonService personService, ObjectProvider<ReindexService> reindexService, LoadTestService loadTestService,
+                            PersonImporter personImporter, JobService jobService) {
         this.personService = personService;
+        this.reindexService = reindexService;
+        this.loadTestService = loadTestService;
+        this.personImporter = personImporter;
+        this.jobService = jobService;
     }
 
     @GetMapping("/api/1/person/{id}")
@@ -51,28 +80,48 @@ public class PersonController {
 
     /**
      * Create or update an entity
-     * @throws InterruptedException 
+     * @param consistency none (default), wait_for or immediate. See {@link Consistency}.
      */
     @PutMapping("/api/1/person/{id}")
-    public Person upsert(@PathVariable Integer id, @RequestBody Person person) throws IOException, InterruptedException {
+    public Person upsert(@PathVariable Integer id, @RequestBody Person person,
+                         @RequestParam(required = false, defaultValue = "none") String consistency) throws IOException {
         logger.debug("upsert({}, {})", id, person);
-        Person upsert = personService.upsert(id, person);
+        Consistency level = Consistency.fromString(consistency);
+        Person upsert = personService.upsert(id, person, level);
         logger.debug("created/updated {}: {}", id, upsert);
-        Thread.sleep(5000);
-        logger.debug(personService.search(upsert.getName(), "", "", 0, 10));
+        if (logger.isDebugEnabled()) {
+            personService.logSearch(upsert.getName());
+        }
         return upsert;
     }
 
+    /**
+     * Update some fields of an entity. Fields which are not provided are left untouched.
+     * @param consistency none (default), wait_for or immediate. See {@link Consistency}.
+     */
+    @PatchMapping("/api/1/person/{id}")
+    public Person patch(@PathVariable Integer id, @RequestBody Person person,
+                        @RequestParam(required = false, defaultValue = "none") String consistency) throws IOException {
+        logger.debug("patch({}, {})", id, person);
+        Consistency level = Consistency.fromString(consistency);
+        return personService.patch(id, person, level);
+    }
+
     @DeleteMapping("/api/1/person/{id}")
     public void delete(@PathVariable Integer id) throws IOException {
         personService.delete(id);
     }
 
+    /**
+     * @param cursor to read all the results page by page, whatever their number: use * for the first page
+     *               and then the next_cursor field of the previous response. When set, from is ignored.
+     */
     @GetMapping("/api/1/person/_search")
     public String search(@RequestParam(required = false) String q, @RequestParam(required = false) String f_country,
                          @RequestParam(required = false) String f_date, @RequestParam(required = false, defaultValue = "0") Integer from,
-                         @RequestParam(required = false, defaultValue = "10") Integer size) throws IOException {
-        return personService.search(q, f_country, f_date, from, size);
+                         @RequestParam(required = false, defaultValue = "10") Integer size,
+                         @RequestParam(required = false) String cursor) throws IOException {
+        return personService.search(q, f_country, f_date, from, size, cursor);
     }
 
     @GetMapping("/api/1/person/_advanced_search")
@@ -83,25 +132,175 @@ public class PersonController {
         return personService.advancedSearch(name, country, city, from, size);
     }
 
+    /**
+     * Autocomplete names, cities and countries starting with q
+     */
+    @GetMapping("/api/1/person/_suggest")
+    public List<Suggestion> suggest(@RequestParam(required = false) String q,
+                                    @RequestParam(required = false, defaultValue = "10") Integer size) {
+        return personService.suggest(q, size);
+    }
+
+    /**
+     * Async mode of the search: the servlet thread is released while elasticsearch is running the query.
+     */
+    @GetMapping(value = "/api/1/person/_search", params = "async=true")
+    public CompletableFuture<String> searchAsync(@RequestParam(required = false) String q, @RequestParam(required = false) String f_country,
+                                                 @RequestParam(required = false) String f_date, @RequestParam(required = false, defaultValue = "0") Integer from,
+                                                 @RequestParam(required = false, defaultValue = "10") Integer size,
+                                                 @RequestParam(required = false) String cursor) {
+        return personService.searchAsync(q, f_country, f_date, from, size, cursor);
+    }
+
+    /**
+     * Async mode of the advanced search: the servlet thread is released while elasticsearch is running the query.
+     */
+    @GetMapping(value = "/api/1/person/_advanced_search", params = "async=true")
+    public CompletableFuture<String> advancedSearchAsync(@RequestParam(required = false) String name, @RequestParam(required = false) String country,
+                                                         @RequestParam(required = false) String city,
+                                                         @RequestParam(required = false, defaultValue = "0") Integer from,
+                                                         @RequestParam(required = false, defaultValue = "10") Integer size) {
+        return personService.advancedSearchAsync(name, country, city, from, size);
+    }
+
+    /**
+     * Export all the persons of the index as NDJSON
+     * @param slices number of slices of the index read in parallel, from 1 to app.export.max-slices
+     */
+    @GetMapping(value = "/api/1/person/_export", produces = "application/x-ndjson")
+    public StreamingResponseBody export(@RequestParam(required = false, defaultValue = "1") Integer slices) {
+        // Checked before the response starts streaming
+        if (slices < 1 || slices > exportMaxSlices) {
+            throw new BadRequestException("slices must be between 1 and " + exportMaxSlices);
+        }
+        return out -> {
+            long exported = personService.export(out, slices);
+            logger.debug("exported {} persons", exported);
+        };
+    }
+
+    /**
+     * Raw mode of the search: the elasticsearch response is streamed to the client without being parsed.
+     */
+    @GetMapping(value = "/api/1/person/_search", params = "raw=true")
+    public void rawSearch(@RequestParam(required = false) String q, @RequestParam(required = false) String f_country,
+                          @RequestParam(required = false) String f_date, @RequestParam(required = false, defaultValue = "0") Integer from,
+                          @RequestParam(required = false, defaultValue = "10") Integer size,
+                          HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        personService.rawSearch(q, f_country, f_date, from, size, response.getOutputStream());
+    }
+
+    /**
+     * Raw mode of the advanced search: the elasticsearch response is streamed to the client without being parsed.
+     */
+    @GetMapping(value = "/api/1/person/_advanced_search", params = "raw=true")
+    public void rawAdvancedSearch(@RequestParam(required = false) String name, @RequestParam(required = false) String country,
+                                  @RequestParam(required = false) String city,
+                                  @RequestParam(required = false, defaultValue = "0") Integer from,
+                                  @RequestParam(required = false, defaultValue = "10") Integer size,
+                                  HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        personService.rawAdvancedSearch(name, country, city, from, size, response.getOutputStream());
+    }
+
+    /**
+     * Generate persons in the background. Follow the job with /api/1/person/_jobs/{id}.
+     */
     @GetMapping("/api/1/person/_init")
-    public InitResult init(@RequestParam(required = false, defaultValue = "1000") Integer size) throws IOException {
-        return personService.init(size);
+    public JobResult init(@RequestParam(required = false, defaultValue = "1000") Integer size) {
+        return personService.startInit(size);
     }
 
+    /**
+     * @return the progress of the last init
+     */
     @GetMapping("/api/1/person/_init_status")
     public InitResult initStatus() {
-        return personService.getInitCurrentAchievement();
+        return jobService.latest("init");
+    }
+
+    /**
+     * Import persons from a NDJSON (application/x-ndjson) or CSV (text/csv) body in the background.
+     * The body is copied to a temporary file while it is received, up to app.import.max-size. See {@link PersonImporter}.
+     * Follow the job with /api/1/person/_jobs/{id}.
+     */
+    @PostMapping(value = "/api/1/person/_bulk", consumes = { "application/x-ndjson", "text/csv" })
+    public JobResult bulk(HttpServletRequest request) throws IOException {
+        return personImporter.startImport(request.getInputStream(), PersonImporter.Format.fromContentType(request.getContentType()));
+    }
+
+    /**
+     * @return the progress of the last import
+     */
+    @GetMapping("/api/1/person/_bulk_status")
+    public InitResult bulkStatus() {
+        return jobService.latest("import");
+    }
+
+    /**
+     * @return the inits and imports, running or finished, the oldest first
+     */
+    @GetMapping("/api/1/person/_jobs")
+    public List<JobResult> jobs() {
+        return jobService.list();
+    }
+
+    /**
+     * @return the state, the timings of every phase and the rate of a job
+     */
+    @GetMapping("/api/1/person/_jobs/{id}")
+    public JobResult job(@PathVariable String id) {
+        return jobService.get(id);
+    }
+
+    /**
+     * Stop a job. The persons it already saved are kept.
+     */
+    @DeleteMapping("/api/1/person/_jobs/{id}")
+    public JobResult cancelJob(@PathVariable String id) {
+        return jobService.cancel(id);
     }
     
+    /**
+     * Rebuild the index from the database in the background, without interrupting searches.
+     */
+    @PostMapping("/api/1/person/_reindex")
+    public ReindexResult reindex() {
+        return reindexService().reindex();
+    }
+
+    @GetMapping("/api/1/person/_reindex_status")
+    public ReindexResult reindexStatus() {
+        return reindexService().getStatus();
+    }
+
+    private ReindexService reindexService() {
+        ReindexService service = reindexService.getIfAvailable();
+        if (service == null) {
+            throw new BadRequestException("Reindex is only available with the elasticsearch backend");
+        }
+        return service;
+    }
+
     @DeleteMapping("/api/1/person/clear-all")
     public ResponseEntity<String> clearDatabase() {
         personService.clearDatabaseAndIndex();
         return ResponseEntity.ok("Base de dados e Elasticsearch limpos com sucesso.");
     }
     
-    @GetMapping("/api/1/person/measure-performance")
-    public ResponseEntity<String> measurePerformance() {
-        personService.measureQueryPerformance();
-        return ResponseEntity.ok("Medição concluída. Verifique os logs.");
+    /**
+     * Send queries to elasticsearch and to the database from several threads and compare their latency.
+     * @param concurrency   number of threads sending queries
+     * @param duration      duration of the test of each backend, in seconds
+     * @param mix           weight of every kind of query: name, city, country and date (a name born in a decade)
+     * @param backends      elasticsearch, elasticsearch-unrouted and/or database
+     */
+    @GetMapping("/api/1/person/_load_test")
+    public LoadTestResult loadTest(@RequestParam(required = false, defaultValue = "4") Integer concurrency,
+                                   @RequestParam(required = false, defaultValue = "10") Integer duration,
+                                   @RequestParam(required = false, defaultValue = "name:4,city:2,country:2,date:2") String mix,
+                                   @RequestParam(required = false, defaultValue = "elasticsearch,database") String backends) {
+        return loadTestService.run(concurrency, duration, mix, backends);
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.webapp;
+
+public class ReindexResult {
+
+    private final String index;
+    private final String phase;
+    private final long took;
+    private final long rate;
+    private final long current;
+
+    /**
+     * @return the index being built
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public long getTook() {
+        return took;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getCurrent() {
+        return current;
+    }
+
+    public ReindexResult(String index, String phase, long took, long rate, long current) {
+        this.index = index;
+        this.phase = phase;
+        this.took = took;
+        this.rate = rate;
+        this.current = current;
+    }
+}
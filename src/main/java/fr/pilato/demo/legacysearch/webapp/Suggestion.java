@@ -0,0 +1,50 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.demo.legacysearch.webapp;
+
+public class Suggestion {
+
+    private final String text;
+    private final String type;
+    private final long count;
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return name, city or country
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return number of persons having this value
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public Suggestion(String text, String type, long count) {
+        this.text = text;
+        this.type = type;
+        this.count = count;
+    }
+}
@@ -18,20 +18,29 @@ angular.
       self.goal = 0;
       self.took = 0;
       self.result = null;
+      self.job = null;
 
       var stop;
       self.startWatch = function() {
         if ( angular.isDefined(stop) ) return;
 
         stop = $interval(function() {
-          // Poll the status API
-          $http({method: 'GET', url: config.backend + '/api/1/person/_init_status' })
+          // Poll the status of the init job
+          $http({method: 'GET', url: config.backend + '/api/1/person/_jobs/' + self.job })
               .then(function successCallback(response) {
                 self.progress = response.data;
                 // Remaining docs
                 var remaining_docs = self.persons - self.progress.current;
-                self.remaining = Math.round(remaining_docs / self.progress.rate);
+                self.remaining = self.progress.rate > 0 ? Math.round(remaining_docs / self.progress.rate) : 0;
                 self.took = Math.round(self.progress.took / 1000);
+                if (self.progress.state === 'done') {
+                  self.result = self.progress.result;
+                  self.status = "bg-success";
+                  self.stopWatch();
+                } else if (self.progress.state === 'failed' || self.progress.state === 'cancelled') {
+                  self.status = "bg-danger";
+                  self.stopWatch();
+                }
               });
         }, 100);
       };
@@ -54,14 +63,17 @@ angular.
         self.remaining = 0;
         self.goal = self.persons;
         self.took = 0;
-        self.startWatch();
+        // The init runs in the background: we follow its job
         $http({method: 'GET', url: config.backend + '/api/1/person/_init?size='+self.persons })
             .then(function successCallback(response) {
-              self.result = response.data;
-              self.progress = self.result;
-              self.status = "bg-success";
-              self.stopWatch();
+              self.job = response.data.id;
+              self.startWatch();
         });
-      }
+      };
+
+      self.cancel = function() {
+        if (self.job === null) return;
+        $http({method: 'DELETE', url: config.backend + '/api/1/person/_jobs/' + self.job });
+      };
     }]
   });